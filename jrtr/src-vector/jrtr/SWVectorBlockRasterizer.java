@@ -0,0 +1,164 @@
+package jrtr;
+
+import static jrtr.SWTileRasterizer.*;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Rasterizes several pixels at a time using the Java Vector API, with as
+ * many pixels as the preferred vector shape of the platform has float lanes,
+ * for example eight with AVX2 and sixteen with AVX-512. The lanes cover a
+ * row of up to {@link SWFrameBuffer#BLOCK_SIZE} pixels, and wider vectors
+ * cover several rows of a block at once. Each lane evaluates the edge 
+ * functions, depth and colors of one pixel directly from the plane 
+ * equations of the triangle, and the depth test, depth write and color 
+ * write are masked per lane.
+ * <p>
+ * Textured triangles are passed on to {@link SWScalarBlockRasterizer}.
+ * <p>
+ * This class depends on the incubator module <code>jdk.incubator.vector</code>.
+ * It is kept in a separate source folder and needs to be compiled and run with
+ * <code>--add-modules jdk.incubator.vector</code>. {@link SWRenderContext} 
+ * loads it by reflection and falls back to {@link SWScalarBlockRasterizer}
+ * if it is not available.
+ */
+public class SWVectorBlockRasterizer implements SWBlockRasterizer {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	// Colors are computed as ints with the same number of lanes
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+
+	// The lanes cover COLUMNS x ROWS pixels
+	private static final int COLUMNS = Math.min(FLOATS.length(), SWFrameBuffer.BLOCK_SIZE);
+	private static final int ROWS = FLOATS.length() / COLUMNS;
+
+	// The column and row of each lane, and the offsets of the pixel 
+	// centers, i.e., 0.5, 1.5, 2.5, ...
+	private static final FloatVector LANE_COLUMNS, LANE_ROWS, LANE_X, LANE_Y;
+	private static final FloatVector ONE = FloatVector.broadcast(FLOATS, 1.f);
+
+	static {
+		float[] c = new float[FLOATS.length()], r = new float[FLOATS.length()];
+		for(int l=0; l<c.length; l++)
+		{
+			c[l] = l % COLUMNS;
+			r[l] = l / COLUMNS;
+		}
+		LANE_COLUMNS = FloatVector.fromArray(FLOATS, c, 0);
+		LANE_ROWS = FloatVector.fromArray(FLOATS, r, 0);
+		LANE_X = LANE_COLUMNS.add(.5f);
+		LANE_Y = LANE_ROWS.add(.5f);
+	}
+
+	// If the lanes cover several rows: the offset of the pixel of each lane 
+	// in the frame buffer, followed by the width of the frame buffer. The
+	// array is replaced when the width changes, and never modified, so it 
+	// can be shared by threads.
+	private volatile int[] laneOffsets = new int[0];
+
+	private final SWScalarBlockRasterizer scalar = new SWScalarBlockRasterizer();
+
+	public boolean rasterizeBlock(float[] s, int t, SWTexture texture, int x0, int y0, int x1, int y1, 
+			SWFrameBuffer frameBuffer)
+	{
+		if(texture != null)
+			return scalar.rasterizeBlock(s, t, texture, x0, y0, x1, y1, frameBuffer);
+
+		int[] color = frameBuffer.getColor();
+		float[] depth = frameBuffer.getDepth();
+		int width = frameBuffer.getWidth();
+		int[] offsets = ROWS > 1 ? getLaneOffsets(width) : null;
+
+		float a0 = s[t+E0], b0 = s[t+E0+1], c0 = s[t+E0+2], t0 = s[t+T0];
+		float a1 = s[t+E1], b1 = s[t+E1+1], c1 = s[t+E1+2], t1 = s[t+T1];
+		float a2 = s[t+E2], b2 = s[t+E2+1], c2 = s[t+E2+2], t2 = s[t+T2];
+		float za = s[t+PLANE_Z], zb = s[t+PLANE_Z+1], zc = s[t+PLANE_Z+2];
+		float wa = s[t+PLANE_IW], wb = s[t+PLANE_IW+1], wc = s[t+PLANE_IW+2];
+		float ra = s[t+PLANE_R], rb = s[t+PLANE_R+1], rc = s[t+PLANE_R+2];
+		float ga = s[t+PLANE_G], gb = s[t+PLANE_G+1], gc = s[t+PLANE_G+2];
+		float ba = s[t+PLANE_B], bb = s[t+PLANE_B+1], bc = s[t+PLANE_B+2];
+
+		boolean written = false;
+		for(int y=y0; y<y1; y+=ROWS)
+		{
+			VectorMask<Float> rowsInRange = LANE_ROWS.compare(VectorOperators.LT, y1 - y);
+			FloatVector py = LANE_Y.add(y);
+
+			// The parts of the planes that are constant along a row
+			FloatVector e0y = py.mul(b0).add(c0), e1y = py.mul(b1).add(c1), e2y = py.mul(b2).add(c2);
+			FloatVector zy = py.mul(zb).add(zc), wy = py.mul(wb).add(wc);
+			FloatVector ry = py.mul(rb).add(rc), gy = py.mul(gb).add(gc), by = py.mul(bb).add(bc);
+
+			for(int x=x0; x<x1; x+=COLUMNS)
+			{
+				FloatVector px = LANE_X.add(x);
+				int i = y*width + x;
+
+				VectorMask<Float> m = rowsInRange
+					.and(LANE_COLUMNS.compare(VectorOperators.LT, x1 - x))
+					.and(px.mul(a0).add(e0y).compare(VectorOperators.GE, t0))
+					.and(px.mul(a1).add(e1y).compare(VectorOperators.GE, t1))
+					.and(px.mul(a2).add(e2y).compare(VectorOperators.GE, t2));
+				if(!m.anyTrue()) continue;
+
+				FloatVector z = px.mul(za).add(zy);
+				FloatVector d = offsets == null ? FloatVector.fromArray(FLOATS, depth, i, m) :
+					FloatVector.fromArray(FLOATS, depth, i, offsets, 0, m);
+				m = m.and(z.compare(VectorOperators.GE, 0.f)).and(z.compare(VectorOperators.LT, d));
+				if(!m.anyTrue()) continue;
+
+				FloatVector w = ONE.div(px.mul(wa).add(wy));
+				IntVector r = toByte(px.mul(ra).add(ry).mul(w));
+				IntVector g = toByte(px.mul(ga).add(gy).mul(w));
+				IntVector b = toByte(px.mul(ba).add(by).mul(w));
+				IntVector c = r.lanewise(VectorOperators.LSHL, 16)
+					.or(g.lanewise(VectorOperators.LSHL, 8))
+					.or(b);
+				if(offsets == null)
+				{
+					z.intoArray(depth, i, m);
+					c.intoArray(color, i, m.cast(INTS));
+				} else
+				{
+					z.intoArray(depth, i, offsets, 0, m);
+					c.intoArray(color, i, offsets, 0, m.cast(INTS));
+				}
+				written = true;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * @return the offsets of the pixels of the lanes relative to the pixel of
+	 * 		   the first lane, in a frame buffer with the given width
+	 */
+	private int[] getLaneOffsets(int width)
+	{
+		int[] offsets = laneOffsets;
+		int lanes = FLOATS.length();
+		if(offsets.length != lanes + 1 || offsets[lanes] != width)
+		{
+			offsets = new int[lanes + 1];
+			for(int l=0; l<lanes; l++)
+				offsets[l] = (l / COLUMNS)*width + l % COLUMNS;
+			offsets[lanes] = width;
+			laneOffsets = offsets;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Convert color components in [0,1] to integers in [0,255], rounding
+	 * and clamping like {@link SWTileRasterizer#packColor}.
+	 */
+	private static IntVector toByte(FloatVector f)
+	{
+		return (IntVector)f.mul(255.f).add(.5f).max(0.f).min(255.f)
+			.convertShape(VectorOperators.F2I, INTS, 0);
+	}
+}
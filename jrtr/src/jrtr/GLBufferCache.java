@@ -0,0 +1,478 @@
+package jrtr;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import javax.media.opengl.*;
+
+/**
+ * Keeps copies of {@link VertexData} in OpenGL buffer objects, so that
+ * geometry is uploaded once instead of being sent to OpenGL in every frame.
+ * Used by {@link GLRenderContext}.
+ * <p>
+ * Each vertex data object gets one vertex buffer, with all its elements
+ * interleaved, and one index buffer. Elements in formats that the fixed
+ * function pipeline cannot read are decoded to floats during the upload.
+ * If vertex array objects are available, the vertex array state is
+ * recorded once per vertex data, so drawing only binds the vertex array.
+ * <p>
+ * Vertex data is identified by reference. It is uploaded again when its
+ * {@link VertexData#getVersion} has changed, see
+ * {@link VertexData#markDirty}. Buffers of vertex data that was not drawn
+ * for {@link #EVICT_FRAMES} frames are deleted.
+ * <p>
+ * All OpenGL calls go through the small {@link Calls} interface, which is
+ * implemented with the {@link GL2} object passed to the cache, so that its
+ * behavior can be checked with an implementation that records the calls.
+ */
+public class GLBufferCache {
+
+	/**
+	 * The number of frames after which buffers that are not used anymore
+	 * are deleted.
+	 */
+	public static final int EVICT_FRAMES = 120;
+
+	/**
+	 * The buffer objects and vertex layout of one vertex data.
+	 */
+	private static class Entry
+	{
+		int vertexBuffer, indexBuffer, vertexArray;
+		int version;
+		int lastFrame;
+		int indexType, indexSize;
+
+		// For each element: its semantic, number of components, OpenGL type
+		// and offset in the vertex
+		int nElements;
+		VertexData.Semantic[] semantics = new VertexData.Semantic[VertexData.Semantic.values().length];
+		int[] components = new int[semantics.length];
+		int[] types = new int[semantics.length];
+		int[] offsets = new int[semantics.length];
+		int stride;
+	}
+
+	/**
+	 * The OpenGL functions used by the cache.
+	 */
+	interface Calls
+	{
+		boolean isExtensionAvailable(String name);
+		boolean isFunctionAvailable(String name);
+		void glGenBuffers(int n, int[] names, int offset);
+		void glDeleteBuffers(int n, int[] names, int offset);
+		void glBindBuffer(int target, int buffer);
+		void glBufferData(int target, long size, Buffer data, int usage);
+		void glGenVertexArrays(int n, int[] names, int offset);
+		void glDeleteVertexArrays(int n, int[] names, int offset);
+		void glBindVertexArray(int array);
+		void glEnableClientState(int array);
+		void glDisableClientState(int array);
+		void glVertexPointer(int size, int type, int stride, long offset);
+		void glNormalPointer(int type, int stride, long offset);
+		void glTexCoordPointer(int size, int type, int stride, long offset);
+		void glColorPointer(int size, int type, int stride, long offset);
+		void glDrawElements(int mode, int count, int type, long offset);
+		void glDrawElementsInstanced(int mode, int count, int type, long offset, int instances);
+	}
+
+	/**
+	 * Forwards the calls of the cache to a {@link GL2} object.
+	 */
+	private static class GL2Calls implements Calls
+	{
+		GL2 gl;
+
+		GL2Calls(GL2 gl)
+		{
+			this.gl = gl;
+		}
+
+		public boolean isExtensionAvailable(String name)
+		{
+			return gl.isExtensionAvailable(name);
+		}
+
+		public boolean isFunctionAvailable(String name)
+		{
+			return gl.isFunctionAvailable(name);
+		}
+
+		public void glGenBuffers(int n, int[] names, int offset)
+		{
+			gl.glGenBuffers(n, names, offset);
+		}
+
+		public void glDeleteBuffers(int n, int[] names, int offset)
+		{
+			gl.glDeleteBuffers(n, names, offset);
+		}
+
+		public void glBindBuffer(int target, int buffer)
+		{
+			gl.glBindBuffer(target, buffer);
+		}
+
+		public void glBufferData(int target, long size, Buffer data, int usage)
+		{
+			gl.glBufferData(target, size, data, usage);
+		}
+
+		public void glGenVertexArrays(int n, int[] names, int offset)
+		{
+			gl.glGenVertexArrays(n, names, offset);
+		}
+
+		public void glDeleteVertexArrays(int n, int[] names, int offset)
+		{
+			gl.glDeleteVertexArrays(n, names, offset);
+		}
+
+		public void glBindVertexArray(int array)
+		{
+			gl.glBindVertexArray(array);
+		}
+
+		public void glEnableClientState(int array)
+		{
+			gl.glEnableClientState(array);
+		}
+
+		public void glDisableClientState(int array)
+		{
+			gl.glDisableClientState(array);
+		}
+
+		public void glVertexPointer(int size, int type, int stride, long offset)
+		{
+			gl.glVertexPointer(size, type, stride, offset);
+		}
+
+		public void glNormalPointer(int type, int stride, long offset)
+		{
+			gl.glNormalPointer(type, stride, offset);
+		}
+
+		public void glTexCoordPointer(int size, int type, int stride, long offset)
+		{
+			gl.glTexCoordPointer(size, type, stride, offset);
+		}
+
+		public void glColorPointer(int size, int type, int stride, long offset)
+		{
+			gl.glColorPointer(size, type, stride, offset);
+		}
+
+		public void glDrawElements(int mode, int count, int type, long offset)
+		{
+			gl.glDrawElements(mode, count, type, offset);
+		}
+
+		public void glDrawElementsInstanced(int mode, int count, int type, long offset, int instances)
+		{
+			gl.glDrawElementsInstanced(mode, count, type, offset, instances);
+		}
+	}
+
+	private final Calls gl;
+	private final GL2Calls gl2;
+	private final boolean halfFloatVertices;
+	private final boolean vertexArrays;
+	private final IdentityHashMap<VertexData, Entry> entries = new IdentityHashMap<VertexData, Entry>();
+	private Entry bound;
+	private int frame;
+	private int uploads;
+	private final int[] names = new int[2];
+
+	/**
+	 * @param gl the OpenGL context. Vertex buffer objects need OpenGL 1.5.
+	 */
+	public GLBufferCache(GL2 gl)
+	{
+		this(new GL2Calls(gl));
+	}
+
+	/**
+	 * Make a cache that makes its OpenGL calls through the given interface.
+	 */
+	GLBufferCache(Calls gl)
+	{
+		this.gl = gl;
+		gl2 = gl instanceof GL2Calls ? (GL2Calls)gl : null;
+		halfFloatVertices = gl.isExtensionAvailable("GL_ARB_half_float_vertex");
+		vertexArrays = gl.isFunctionAvailable("glGenVertexArrays");
+	}
+
+	/**
+	 * Set the OpenGL object used for the following calls. The object may
+	 * change between frames, but must belong to the same context.
+	 */
+	public void setGL(GL2 gl)
+	{
+		if(gl2 != null) gl2.gl = gl;
+	}
+
+	/**
+	 * Bind the buffers of the vertex data for drawing with
+	 * {@link #drawElements}, uploading it first if it is not in the cache or
+	 * has changed since it was uploaded.
+	 *
+	 * @return false if the vertex data has no indices, in which case nothing
+	 * 		   is bound
+	 */
+	public boolean bind(VertexData vertexData)
+	{
+		if(vertexData.getIndexBuffer() == null) return false;
+
+		Entry e = entries.get(vertexData);
+		if(e == null)
+		{
+			e = new Entry();
+			gl.glGenBuffers(2, names, 0);
+			e.vertexBuffer = names[0];
+			e.indexBuffer = names[1];
+			if(vertexArrays)
+			{
+				gl.glGenVertexArrays(1, names, 0);
+				e.vertexArray = names[0];
+			}
+			entries.put(vertexData, e);
+			upload(vertexData, e);
+		} else if(e.version != vertexData.getVersion())
+		{
+			upload(vertexData, e);
+		} else if(vertexArrays)
+		{
+			gl.glBindVertexArray(e.vertexArray);
+		} else
+		{
+			setPointers(e);
+		}
+		e.lastFrame = frame;
+		bound = e;
+		return true;
+	}
+
+	/**
+	 * Draw triangles of the bound vertex data.
+	 *
+	 * @param first the position of the first index to draw
+	 * @param count the number of indices to draw
+	 */
+	public void drawElements(int first, int count)
+	{
+		gl.glDrawElements(GL.GL_TRIANGLES, count, bound.indexType, (long)first*bound.indexSize);
+	}
+
+	/**
+	 * Draw instances of triangles of the bound vertex data. The
+	 * per-instance attributes need to be set up by the caller.
+	 *
+	 * @param first the position of the first index to draw
+	 * @param count the number of indices to draw
+	 * @param instances the number of instances
+	 */
+	public void drawElementsInstanced(int first, int count, int instances)
+	{
+		gl.glDrawElementsInstanced(GL.GL_TRIANGLES, count, bound.indexType, (long)first*bound.indexSize, instances);
+	}
+
+	/**
+	 * Restore the vertex array state after drawing.
+	 */
+	public void unbind()
+	{
+		if(vertexArrays)
+		{
+			gl.glBindVertexArray(0);
+		} else
+		{
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+			disableClientStates();
+		}
+		bound = null;
+	}
+
+	/**
+	 * Called at the end of each frame. Deletes buffers that have not been
+	 * used for {@link #EVICT_FRAMES} frames.
+	 */
+	public void endFrame()
+	{
+		frame++;
+		Iterator<Entry> i = entries.values().iterator();
+		while(i.hasNext())
+		{
+			Entry e = i.next();
+			if(frame - e.lastFrame > EVICT_FRAMES)
+			{
+				delete(e);
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Delete the buffers of the vertex data, if it is in the cache.
+	 */
+	public void release(VertexData vertexData)
+	{
+		Entry e = entries.remove(vertexData);
+		if(e != null) delete(e);
+	}
+
+	/**
+	 * Delete all buffers.
+	 */
+	public void dispose()
+	{
+		for(Entry e : entries.values())
+			delete(e);
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of vertex data objects in the cache
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of uploads since the cache was made
+	 */
+	public int getNumberOfUploads()
+	{
+		return uploads;
+	}
+
+	private void delete(Entry e)
+	{
+		names[0] = e.vertexBuffer;
+		names[1] = e.indexBuffer;
+		gl.glDeleteBuffers(2, names, 0);
+		if(vertexArrays)
+		{
+			names[0] = e.vertexArray;
+			gl.glDeleteVertexArrays(1, names, 0);
+		}
+	}
+
+	/**
+	 * Copy the vertex data into the buffers of the entry. The vertex array
+	 * state is set up, and left bound for drawing.
+	 */
+	private void upload(VertexData vertexData, Entry e)
+	{
+		// Choose the layout of the vertex buffer. Each element starts at a
+		// multiple of four bytes.
+		VertexData.Layout layout = vertexData.getLayout();
+		boolean[] copy = new boolean[layout.size()];
+		e.nElements = layout.size();
+		e.stride = 0;
+		for(int k=0; k<layout.size(); k++)
+		{
+			VertexData.VertexElement element = layout.getElement(k);
+			int n = element.getNumberOfComponents();
+			int type = element.getBuffer() != null ? GLRenderContext.glType(element, halfFloatVertices) : -1;
+			copy[k] = type >= 0;
+			e.semantics[k] = element.getSemantic();
+			e.components[k] = n;
+			e.types[k] = copy[k] ? type : GL.GL_FLOAT;
+			e.offsets[k] = e.stride;
+			e.stride += copy[k] ? (element.getFormat().getSize(n) + 3) & ~3 : 4*n;
+		}
+
+		// Fill the vertex buffer. Elements that OpenGL can read are copied
+		// byte by byte, the others are decoded.
+		int nVertices = vertexData.getNumberOfVertices();
+		ByteBuffer vertices = VertexData.allocateBuffer(nVertices*e.stride);
+		for(int k=0; k<layout.size(); k++)
+		{
+			VertexData.VertexElement element = layout.getElement(k);
+			int n = element.getNumberOfComponents();
+			if(copy[k])
+			{
+				ByteBuffer src = element.getBuffer();
+				int size = element.getFormat().getSize(n);
+				for(int i=0; i<nVertices; i++)
+				{
+					int o = i*e.stride + e.offsets[k];
+					for(int b=0; b<size; b++)
+						vertices.put(o + b, src.get(i*element.getStride() + b));
+				}
+			} else
+			{
+				for(int i=0; i<nVertices; i++)
+				{
+					int o = i*e.stride + e.offsets[k];
+					for(int c=0; c<n; c++)
+						vertices.putFloat(o + 4*c, element.get(i, c));
+				}
+			}
+		}
+
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		e.indexType = GLRenderContext.glType(indices.getType());
+		e.indexSize = indices.getType().getSize();
+		e.version = vertexData.getVersion();
+		uploads++;
+
+		// The element array binding is part of the vertex array state, so
+		// the vertex array is bound first
+		if(vertexArrays) gl.glBindVertexArray(e.vertexArray);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, e.vertexBuffer);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertices.capacity(), vertices, GL.GL_STATIC_DRAW);
+		ByteBuffer indexData = indices.getBuffer().duplicate();
+		indexData.clear();
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, e.indexBuffer);
+		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long)indices.size()*e.indexSize, indexData, GL.GL_STATIC_DRAW);
+		setPointers(e);
+	}
+
+	/**
+	 * Set the vertex array pointers to the buffers of the entry, and bind
+	 * its index buffer.
+	 */
+	private void setPointers(Entry e)
+	{
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, e.vertexBuffer);
+		// The vertex array may have enabled other arrays before an upload
+		if(vertexArrays) disableClientStates();
+		for(int k=0; k<e.nElements; k++)
+		{
+			switch(e.semantics[k])
+			{
+				case POSITION:
+					gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+					gl.glVertexPointer(e.components[k], e.types[k], e.stride, e.offsets[k]);
+					break;
+				case NORMAL:
+					gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+					gl.glNormalPointer(e.types[k], e.stride, e.offsets[k]);
+					break;
+				case TEXCOORD:
+					gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+					gl.glTexCoordPointer(e.components[k], e.types[k], e.stride, e.offsets[k]);
+					break;
+				case COLOR:
+					gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+					gl.glColorPointer(e.components[k], e.types[k], e.stride, e.offsets[k]);
+					break;
+			}
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, e.indexBuffer);
+	}
+
+	private void disableClientStates()
+	{
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+	}
+}
@@ -0,0 +1,125 @@
+package jrtr;
+
+/**
+ * Counters collected by the OpenGL renderer ({@link GLRenderContext})
+ * while rendering a frame. The counters are reset at the beginning of
+ * each frame and are complete once <code>display</code> returns.
+ */
+public class GLFrameStats {
+
+	long items;
+	long drawCalls;
+	long instancedItems;
+	long matrixLoads;
+	long shaderChanges;
+	long textureChanges;
+	long avoidedStateChanges;
+	long filteredCalls;
+	long forwardedCalls;
+
+	void reset()
+	{
+		items = 0;
+		drawCalls = 0;
+		instancedItems = 0;
+		matrixLoads = 0;
+		shaderChanges = 0;
+		textureChanges = 0;
+		avoidedStateChanges = 0;
+		filteredCalls = 0;
+		forwardedCalls = 0;
+	}
+
+	/**
+	 * @return the number of render items that were drawn
+	 */
+	public long getItems()
+	{
+		return items;
+	}
+
+	/**
+	 * @return the number of draw calls, where each batch of instances and
+	 * 		   each range of visible meshlets takes one call
+	 */
+	public long getDrawCalls()
+	{
+		return drawCalls;
+	}
+
+	/**
+	 * @return the number of render items that were drawn with instancing,
+	 * 		   see {@link GLInstancing}
+	 */
+	public long getInstancedItems()
+	{
+		return instancedItems;
+	}
+
+	/**
+	 * @return the number of modelview matrices that were loaded. Objects
+	 * 		   whose transforms are read from a {@link GLTransformRing} do
+	 * 		   not need their own.
+	 */
+	public long getMatrixLoads()
+	{
+		return matrixLoads;
+	}
+
+	/**
+	 * @return the number of times the shader changed from one item to the
+	 * 		   next, including changes to and from no shader
+	 */
+	public long getShaderChanges()
+	{
+		return shaderChanges;
+	}
+
+	/**
+	 * @return the number of times a texture was bound or texturing was
+	 * 		   disabled
+	 */
+	public long getTextureChanges()
+	{
+		return textureChanges;
+	}
+
+	/**
+	 * @return the number of shader and texture changes that were not made
+	 * 		   because the items are sorted, see {@link RenderQueue}. This is
+	 * 		   the difference to setting the shader and texture of each item
+	 * 		   before drawing it and resetting them afterwards.
+	 */
+	public long getAvoidedStateChanges()
+	{
+		return avoidedStateChanges;
+	}
+
+	/**
+	 * @return the number of redundant state changes that were not passed
+	 * 		   to OpenGL, see {@link GLStateCache}
+	 */
+	public long getFilteredCalls()
+	{
+		return filteredCalls;
+	}
+
+	/**
+	 * @return the number of state changes through the {@link GLStateCache}
+	 * 		   that were passed to OpenGL
+	 */
+	public long getForwardedCalls()
+	{
+		return forwardedCalls;
+	}
+
+	public String toString()
+	{
+		return "items " + items + ", draw calls " + drawCalls +
+			", instanced items " + instancedItems + ", matrix loads " + matrixLoads +
+			", shader changes " + shaderChanges +
+			", texture changes " + textureChanges +
+			", avoided state changes " + avoidedStateChanges +
+			", filtered calls " + filteredCalls + ", forwarded calls " + forwardedCalls;
+	}
+}
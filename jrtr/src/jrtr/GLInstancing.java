@@ -0,0 +1,210 @@
+package jrtr;
+
+import java.nio.FloatBuffer;
+import javax.media.opengl.*;
+import javax.vecmath.Matrix4f;
+
+/**
+ * Draws many copies of the same {@link VertexData} with one call to
+ * <code>glDrawElementsInstanced</code>. The object-to-world transform of
+ * each copy is stored in an instance buffer, either of this object or a
+ * {@link GLTransformRing}, and read by a built-in shader as a per-instance
+ * attribute. The shader does what the fixed function pipeline does for
+ * unlit geometry: it multiplies the vertex color with the texture, if
+ * there is one. Used by {@link GLRenderContext} for items whose material
+ * has no shader of its own.
+ */
+public class GLInstancing {
+
+	/**
+	 * Items that share vertex data and material are drawn with instancing
+	 * if there are at least this many.
+	 */
+	public static final int MIN_INSTANCES = 2;
+
+	private static final String[] VERTEX_SHADER = {
+		"#version 120\n" +
+		"attribute mat4 instanceMatrix;\n" +
+		"void main()\n" +
+		"{\n" +
+		"	gl_Position = gl_ModelViewProjectionMatrix * (instanceMatrix * gl_Vertex);\n" +
+		"	gl_FrontColor = gl_Color;\n" +
+		"	gl_TexCoord[0] = gl_MultiTexCoord0;\n" +
+		"}\n"
+	};
+
+	private static final String[] FRAGMENT_SHADER = {
+		"#version 120\n" +
+		"uniform sampler2D image;\n" +
+		"uniform bool textured;\n" +
+		"void main()\n" +
+		"{\n" +
+		"	gl_FragColor = textured ? gl_Color * texture2D(image, gl_TexCoord[0].st) : gl_Color;\n" +
+		"}\n"
+	};
+
+	private GL2 gl;
+	// Sets the attribute divisors, GL2 has no entry point for them
+	private GL3 gl3;
+	private GLShader shader;
+	private int matrixLocation, texturedLocation;
+	private int instanceBuffer;
+	private FloatBuffer matrices;
+	private int count;
+
+	private GLInstancing(GL2 gl)
+	{
+		this.gl = gl;
+		matrices = VertexData.allocateBuffer(64*64).asFloatBuffer();
+	}
+
+	/**
+	 * Make the instancing support for an OpenGL context.
+	 *
+	 * @param state binds the shader program of the instancing shader
+	 * @return null if OpenGL does not support instancing, or the shader
+	 * 		   could not be compiled. Instancing needs an OpenGL 3
+	 * 		   compatibility context, which has the attribute divisors.
+	 */
+	public static GLInstancing make(GL2 gl, GLStateCache state)
+	{
+		if(!gl.isGL3() || !gl.isFunctionAvailable("glDrawElementsInstanced") ||
+				!gl.isFunctionAvailable("glVertexAttribDivisor"))
+			return null;
+
+		GLInstancing instancing = new GLInstancing(gl);
+		instancing.gl3 = gl.getGL3();
+		instancing.shader = new GLShader(gl, state);
+		try
+		{
+			instancing.shader.compile(VERTEX_SHADER, FRAGMENT_SHADER);
+		} catch(Exception e)
+		{
+			return null;
+		}
+		int p = instancing.shader.getProgram();
+		instancing.matrixLocation = gl.glGetAttribLocation(p, "instanceMatrix");
+		instancing.texturedLocation = gl.glGetUniformLocation(p, "textured");
+		if(instancing.matrixLocation < 0) return null;
+
+		int[] names = new int[1];
+		gl.glGenBuffers(1, names, 0);
+		instancing.instanceBuffer = names[0];
+		return instancing;
+	}
+
+	/**
+	 * Set the OpenGL object used for the following calls, see
+	 * {@link GLBufferCache#setGL}.
+	 */
+	public void setGL(GL2 gl)
+	{
+		this.gl = gl;
+		gl3 = gl.getGL3();
+	}
+
+	/**
+	 * Start collecting the transforms of a batch in the instance buffer of
+	 * this object. Used if there is no {@link GLTransformRing}.
+	 */
+	public void begin()
+	{
+		matrices.clear();
+		count = 0;
+	}
+
+	/**
+	 * Add an instance with the given object-to-world transform.
+	 */
+	public void add(Matrix4f t)
+	{
+		if(matrices.remaining() < 16)
+		{
+			FloatBuffer b = VertexData.allocateBuffer(8*matrices.capacity()).asFloatBuffer();
+			matrices.flip();
+			b.put(matrices);
+			matrices = b;
+		}
+		put(matrices, t);
+		count++;
+	}
+
+	/**
+	 * Store a transform in column major order, as expected by OpenGL.
+	 */
+	static void put(FloatBuffer b, Matrix4f t)
+	{
+		b.put(t.m00).put(t.m10).put(t.m20).put(t.m30);
+		b.put(t.m01).put(t.m11).put(t.m21).put(t.m31);
+		b.put(t.m02).put(t.m12).put(t.m22).put(t.m32);
+		b.put(t.m03).put(t.m13).put(t.m23).put(t.m33);
+	}
+
+	/**
+	 * Upload the transforms added since {@link #begin} and read the
+	 * instance transforms from them.
+	 */
+	public void bindInstances()
+	{
+		matrices.flip();
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, 4L*matrices.limit(), matrices, GL2ES2.GL_STREAM_DRAW);
+		bindInstances(instanceBuffer, 0);
+	}
+
+	/**
+	 * Read the instance transforms from a buffer, for example a
+	 * {@link GLTransformRing}. Needs to be called after the vertex data is
+	 * bound in the buffer cache.
+	 *
+	 * @param offset the position of the transform of the first instance in
+	 * 		  bytes
+	 */
+	public void bindInstances(int buffer, long offset)
+	{
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+		// A matrix attribute takes one location per column
+		for(int c=0; c<4; c++)
+		{
+			gl.glEnableVertexAttribArray(matrixLocation + c);
+			gl.glVertexAttribPointer(matrixLocation + c, 4, GL.GL_FLOAT, false, 64, offset + 16*c);
+			gl3.glVertexAttribDivisor(matrixLocation + c, 1);
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Disable the instance transforms after drawing. The attribute state
+	 * may be recorded in the vertex array of the vertex data, which is also
+	 * drawn without instancing.
+	 */
+	public void unbindInstances()
+	{
+		for(int c=0; c<4; c++)
+		{
+			gl3.glVertexAttribDivisor(matrixLocation + c, 0);
+			gl.glDisableVertexAttribArray(matrixLocation + c);
+		}
+	}
+
+	/**
+	 * Bind the instancing shader. It stays bound after drawing, so that
+	 * consecutive batches do not switch programs. The modelview matrix
+	 * needs to hold the camera matrix.
+	 *
+	 * @param textured whether a texture is bound
+	 */
+	public void use(boolean textured)
+	{
+		shader.use();
+		gl.glUniform1i(texturedLocation, textured ? 1 : 0);
+	}
+
+	/**
+	 * @return the number of instances added since {@link #begin}
+	 */
+	public int size()
+	{
+		return count;
+	}
+}
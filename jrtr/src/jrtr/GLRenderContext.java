@@ -1,7 +1,6 @@
 package jrtr;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.nio.ByteBuffer;
 import javax.media.opengl.*;
 import javax.vecmath.*;
 
@@ -12,6 +11,21 @@ public class GLRenderContext implements RenderContext {
 
 	private SceneManagerInterface sceneManager;
 	private GL2 gl;
+	private boolean halfFloatVertices;
+	private GLStateCache state;
+	private GLBufferCache bufferCache;
+	private GLInstancing instancing;
+	private GLTransformRing transforms;
+	// Whether the transforms of the current frame are in the ring
+	private boolean transformsMapped;
+	private boolean cameraLoaded;
+	private RenderQueue queue = new RenderQueue();
+	private GLFrameStats stats = new GLFrameStats();
+	private Shader currentShader;
+	private GLTexture currentTexture;
+	private long unsortedStateChanges;
+	private Meshlets.Culler culler = new Meshlets.Culler();
+	private int[] ranges = new int[2];
 	
 	/**
 	 * This constructor is called by {@link GLRenderPanel}.
@@ -22,8 +36,16 @@ public class GLRenderContext implements RenderContext {
 	public GLRenderContext(GLAutoDrawable drawable)
 	{
 		gl = drawable.getGL().getGL2();
-		gl.glEnable(GL.GL_DEPTH_TEST);
-        gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		state = new GLStateCache(gl);
+		state.enable(GL.GL_DEPTH_TEST);
+		state.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		halfFloatVertices = gl.isExtensionAvailable("GL_ARB_half_float_vertex");
+		if(gl.isFunctionAvailable("glGenBuffers"))
+		{
+			bufferCache = new GLBufferCache(gl);
+			instancing = GLInstancing.make(gl, state);
+			if(instancing != null) transforms = GLTransformRing.make(gl);
+		}
 	}
 
 		
@@ -39,21 +61,60 @@ public class GLRenderContext implements RenderContext {
 	
 	/**
 	 * This method is called by the GLRenderPanel to redraw the 3D scene.
-	 * The method traverses the scene using the scene manager and passes
-	 * each object to the rendering method.
+	 * The method traverses the scene using the scene manager, sorts the
+	 * objects in a {@link RenderQueue}, and passes each object to the 
+	 * rendering method. Objects that share vertex data and material are
+	 * drawn together with instancing, see {@link GLInstancing}. If OpenGL
+	 * supports it, the transforms of all objects are written to a
+	 * {@link GLTransformRing} first, and all objects without a shader of
+	 * their own are drawn with the instancing shader, one instance or more 
+	 * at a time. Then no matrix is loaded per object.
 	 */
 	public void display(GLAutoDrawable drawable)
 	{
 		gl = drawable.getGL().getGL2();
+		state.setGL(gl);
+		if(bufferCache != null) bufferCache.setGL(gl);
+		if(instancing != null) instancing.setGL(gl);
+		if(transforms != null) transforms.setGL(gl);
 		
 		beginFrame();
 		
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+		queue.clear();
 		SceneManagerIterator iterator = sceneManager.iterator();	
 		while(iterator.hasNext())
 		{
 			RenderItem r = iterator.next();
-			if(r.getShape()!=null) draw(r);
+			if(r.getShape()!=null) queue.add(r, camera);
 		}		
+		queue.sort();
+		transformsMapped = false;
+		if(transforms != null)
+		{
+			// One pass over all transforms, in the order of drawing. If the
+			// ring cannot be mapped, each batch uploads its own transforms.
+			transformsMapped = transforms.begin(queue.size());
+			if(transformsMapped)
+			{
+				for(int i=0; i<queue.size(); i++)
+					transforms.add(queue.get(i).getT());
+			}
+			transforms.end();
+		}
+		for(int i=0; i<queue.size(); )
+		{
+			int n = queue.getBatchSize(i);
+			if(canDrawInstanced(queue.get(i), n))
+			{
+				drawInstanced(i, n);
+			} else
+			{
+				for(int j=i; j<i+n; j++)
+					draw(queue.get(j));
+			}
+			i += n;
+		}
 		
 		endFrame();
 	}
@@ -64,12 +125,16 @@ public class GLRenderContext implements RenderContext {
 	 */
 	private void beginFrame()
 	{
+		stats.reset();
+		state.resetCounters();
+		unsortedStateChanges = 0;
+		cameraLoaded = false;
 		setLights();
 		
         gl.glClear(GL.GL_COLOR_BUFFER_BIT);
         gl.glClear(GL.GL_DEPTH_BUFFER_BIT);
         // Load the projection matrix
-        gl.glMatrixMode(GL2.GL_PROJECTION);
+        state.matrixMode(GL2.GL_PROJECTION);
         gl.glLoadMatrixf(matrix4fToFloat16(sceneManager.getFrustum().getProjectionMatrix()), 0);
 	}
 
@@ -79,9 +144,62 @@ public class GLRenderContext implements RenderContext {
 	 */
 	private void endFrame()
 	{
+		// Leave the fixed function pipeline without texture
+		setMaterial(null);
+		useShader();
+		stats.avoidedStateChanges = unsortedStateChanges - stats.shaderChanges - stats.textureChanges;
+		stats.filteredCalls = state.getFilteredCalls();
+		stats.forwardedCalls = state.getForwardedCalls();
+		if(transforms != null) transforms.fence();
+		if(bufferCache != null) bufferCache.endFrame();
         gl.glFlush();		
 	}
 	
+	/**
+	 * Delete the OpenGL buffers of all vertex data. Called by
+	 * {@link GLRenderPanel} when the OpenGL context is destroyed.
+	 */
+	void dispose(GLAutoDrawable drawable)
+	{
+		if(bufferCache != null)
+		{
+			bufferCache.setGL(drawable.getGL().getGL2());
+			bufferCache.dispose();
+		}
+		if(transforms != null)
+		{
+			transforms.setGL(drawable.getGL().getGL2());
+			transforms.dispose();
+		}
+	}
+	
+	/**
+	 * @return the cache that keeps vertex data in OpenGL buffers, or null if
+	 * 		   OpenGL does not support buffer objects. Vertex data that is 
+	 * 		   not needed anymore can be released from the cache.
+	 */
+	public GLBufferCache getBufferCache()
+	{
+		return bufferCache;
+	}
+	
+	/**
+	 * @return the cache through which OpenGL state is changed. Code that
+	 * 		   changes the state directly needs to invalidate it.
+	 */
+	public GLStateCache getStateCache()
+	{
+		return state;
+	}
+	
+	/**
+	 * @return the counters of the last frame
+	 */
+	public GLFrameStats getFrameStats()
+	{
+		return stats;
+	}
+	
 	/**
 	 * Convert a Matrix4f to a float array in column major ordering,
 	 * as used by OpenGL.
@@ -102,102 +220,382 @@ public class GLRenderContext implements RenderContext {
 	 */
 	private void draw(RenderItem renderItem)
 	{
-		VertexData vertexData = renderItem.getShape().getVertexData();
-		LinkedList<VertexData.VertexElement> vertexElements = vertexData.getElements();
-		int indices[] = vertexData.getIndices();
+		VertexData vertexData = renderItem.getVertexData();
+		IndexBuffer indices = vertexData.getIndexBuffer();
 
 		// Don't draw if there are no indices
 		if(indices == null) return;
 		
 		// Set the material
 		setMaterial(renderItem.getShape().getMaterial());
+		useShader();
+		stats.items++;
+		unsortedStateChanges += unsortedStateChanges(renderItem.getShape().getMaterial());
 
 		// Set the modelview matrix by multiplying the camera matrix and the 
 		// transformation matrix of the object
-		gl.glMatrixMode(GL2.GL_MODELVIEW);
+		state.matrixMode(GL2.GL_MODELVIEW);
 		Matrix4f t = new Matrix4f();
 		t.set(sceneManager.getCamera().getCameraMatrix());
 		t.mul(renderItem.getT());
 		gl.glLoadMatrixf(matrix4fToFloat16(t), 0);
+		cameraLoaded = false;
+		stats.matrixLoads++;
+		
+		int nRanges = cull(vertexData, t);
+		if(bufferCache != null && bufferCache.bind(vertexData))
+		{
+			for(int r=0; r<2*nRanges; r+=2)
+				bufferCache.drawElements(ranges[r], ranges[r+1] - ranges[r]);
+			bufferCache.unbind();
+			stats.drawCalls += nRanges;
+			return;
+		}
+		if(canDrawArrays(vertexData))
+		{
+			drawArrays(vertexData, nRanges);
+			stats.drawCalls += nRanges;
+			return;
+		}
 	     
-        // Draw geometry
+        // Without buffer objects, draw geometry in immediate mode. The layout
+		// tells which OpenGL call passes each element, so no list is walked
+		// per vertex.
+		VertexData.Layout layout = vertexData.getLayout();
         gl.glBegin(GL.GL_TRIANGLES);
-		for(int j=0; j<indices.length; j++)
+		for(int r=0; r<2*nRanges; r+=2)
 		{
-			int i = indices[j];
-			
-			ListIterator<VertexData.VertexElement> itr = vertexElements.listIterator(0);
-			while(itr.hasNext())
+			for(int j=ranges[r]; j<ranges[r+1]; j++)
 			{
-				VertexData.VertexElement e = itr.next();
-				if(e.getSemantic() == VertexData.Semantic.POSITION)
-				{
-					if(e.getNumberOfComponents()==2)
-					{
-						gl.glVertex2f(e.getData()[i*2], e.getData()[i*2+1]);
-					}
-					else if(e.getNumberOfComponents()==3)
-					{
-						gl.glVertex3f(e.getData()[i*3], e.getData()[i*3+1], e.getData()[i*3+2]);
-					}
-					else if(e.getNumberOfComponents()==4)
-					{
-						gl.glVertex4f(e.getData()[i*4], e.getData()[i*4+1], e.getData()[i*4+2], e.getData()[i*4+3]);
-					}
-				} 
-				else if(e.getSemantic() == VertexData.Semantic.NORMAL)
-				{
-					if(e.getNumberOfComponents()==3)
-					{
-						gl.glNormal3f(e.getData()[i*3], e.getData()[i*3+1], e.getData()[i*3+2]);
-					}
-					else if(e.getNumberOfComponents()==4)
-					{
-						gl.glVertex4f(e.getData()[i*4], e.getData()[i*4+1], e.getData()[i*4+2], e.getData()[i*4+3]);
-					}
-				}
-				else if(e.getSemantic() == VertexData.Semantic.TEXCOORD)
-				{
-					if(e.getNumberOfComponents()==2)
-					{
-						gl.glTexCoord2f(e.getData()[i*2], e.getData()[i*2+1]);
-					}
-					else if(e.getNumberOfComponents()==3)
-					{
-						gl.glTexCoord3f(e.getData()[i*3], e.getData()[i*3+1], e.getData()[i*3+2]);
-					}
-					else if(e.getNumberOfComponents()==4)
-					{
-						gl.glTexCoord4f(e.getData()[i*4], e.getData()[i*4+1], e.getData()[i*4+2], e.getData()[i*4+3]);
-					}
-				}
-				else if(e.getSemantic() == VertexData.Semantic.COLOR)
+				int i = indices.get(j);
+			
+				for(int k=0; k<layout.size(); k++)
 				{
-					if(e.getNumberOfComponents()==3)
+					VertexData.VertexElement e = layout.getElement(k);
+					switch(layout.getFormat(k))
 					{
-						gl.glColor3f(e.getData()[i*3], e.getData()[i*3+1], e.getData()[i*3+2]);
-					}
-					else if(e.getNumberOfComponents()==4)
-					{
-						gl.glColor4f(e.getData()[i*4], e.getData()[i*4+1], e.getData()[i*4+2], e.getData()[i*4+3]);
+						case VertexData.Layout.POSITION2:
+							gl.glVertex2f(e.get(i, 0), e.get(i, 1));
+							break;
+						case VertexData.Layout.POSITION3:
+							gl.glVertex3f(e.get(i, 0), e.get(i, 1), e.get(i, 2));
+							break;
+						case VertexData.Layout.POSITION4:
+							gl.glVertex4f(e.get(i, 0), e.get(i, 1), e.get(i, 2), e.get(i, 3));
+							break;
+						case VertexData.Layout.NORMAL3:
+							gl.glNormal3f(e.get(i, 0), e.get(i, 1), e.get(i, 2));
+							break;
+						case VertexData.Layout.TEXCOORD2:
+							gl.glTexCoord2f(e.get(i, 0), e.get(i, 1));
+							break;
+						case VertexData.Layout.TEXCOORD3:
+							gl.glTexCoord3f(e.get(i, 0), e.get(i, 1), e.get(i, 2));
+							break;
+						case VertexData.Layout.TEXCOORD4:
+							gl.glTexCoord4f(e.get(i, 0), e.get(i, 1), e.get(i, 2), e.get(i, 3));
+							break;
+						case VertexData.Layout.COLOR3:
+							gl.glColor3f(e.get(i, 0), e.get(i, 1), e.get(i, 2));
+							break;
+						case VertexData.Layout.COLOR4:
+							gl.glColor4f(e.get(i, 0), e.get(i, 1), e.get(i, 2), e.get(i, 3));
+							break;
 					}
 				}
-
 			}
-			
 		}
         gl.glEnd();
-        
-        cleanMaterial(renderItem.getShape().getMaterial());
+        stats.drawCalls++;
+	}
+	
+	/**
+	 * @return true if a batch of n items can be drawn with instancing. This
+	 * 		   needs buffer objects, and a material without a shader, since
+	 * 		   the shader would not know about the instance transforms. 
+	 * 		   Single items are only drawn with instancing if their 
+	 * 		   transforms are in the {@link GLTransformRing}.
+	 */
+	private boolean canDrawInstanced(RenderItem renderItem, int n)
+	{
+		Material m = renderItem.getShape().getMaterial();
+		return instancing != null && (transformsMapped || n >= GLInstancing.MIN_INSTANCES) &&
+				(m == null || m.getShader() == null) && renderItem.getVertexData().getIndexBuffer() != null;
+	}
+	
+	/**
+	 * Draw items of the render queue that share vertex data and material 
+	 * with one instanced draw call. The meshlets of the vertex data are 
+	 * only culled for single items, since they would need to be culled per
+	 * instance.
+	 * 
+	 * @param first the position of the first item in the queue
+	 * @param n the number of items
+	 */
+	private void drawInstanced(int first, int n)
+	{
+		RenderItem renderItem = queue.get(first);
+		VertexData vertexData = renderItem.getVertexData();
+		Material m = renderItem.getShape().getMaterial();
+		setMaterial(m);
+		stats.items += n;
+		if(n > 1) stats.instancedItems += n;
+		unsortedStateChanges += n*unsortedStateChanges(m);
+		
+		// The instance transforms are applied by the shader, so the 
+		// modelview matrix is the camera matrix
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+		if(!cameraLoaded)
+		{
+			state.matrixMode(GL2.GL_MODELVIEW);
+			gl.glLoadMatrixf(matrix4fToFloat16(camera), 0);
+			cameraLoaded = true;
+			stats.matrixLoads++;
+		}
+		
+		int nRanges = 1;
+		if(n == 1)
+		{
+			Matrix4f t = new Matrix4f(camera);
+			t.mul(renderItem.getT());
+			nRanges = cull(vertexData, t);
+		} else
+		{
+			ranges[0] = 0;
+			ranges[1] = vertexData.getIndexBuffer().size();
+		}
+		
+		bufferCache.bind(vertexData);
+		instancing.use(currentTexture != null);
+		if(transformsMapped)
+		{
+			instancing.bindInstances(transforms.getBuffer(), transforms.getOffset(first));
+		} else
+		{
+			instancing.begin();
+			for(int i=first; i<first+n; i++)
+				instancing.add(queue.get(i).getT());
+			instancing.bindInstances();
+		}
+		for(int r=0; r<2*nRanges; r+=2)
+			bufferCache.drawElementsInstanced(ranges[r], ranges[r+1] - ranges[r], n);
+		instancing.unbindInstances();
+		bufferCache.unbind();
+		stats.drawCalls += nRanges;
+	}
+
+	/**
+	 * @return true if all elements are stored in buffers in formats that 
+	 * 		   OpenGL can read directly, see {@link #glType(VertexData.VertexElement)}
+	 */
+	private boolean canDrawArrays(VertexData vertexData)
+	{
+		if(!vertexData.isInBuffers()) return false;
+		VertexData.Layout layout = vertexData.getLayout();
+		for(int k=0; k<layout.size(); k++)
+		{
+			if(glType(layout.getElement(k)) < 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the OpenGL type of an element stored in a buffer, or -1 if the 
+	 * 		   fixed function pipeline cannot read its format. Octahedral
+	 * 		   normals and normalized texture coordinates would need a shader,
+	 * 		   so such vertex data is decoded and drawn in immediate mode.
+	 */
+	private int glType(VertexData.VertexElement e)
+	{
+		return glType(e, halfFloatVertices);
+	}
+	
+	/**
+	 * @param halfFloatVertices whether OpenGL reads half float vertices
+	 * @see #glType(VertexData.VertexElement)
+	 */
+	static int glType(VertexData.VertexElement e, boolean halfFloatVertices)
+	{
+		switch(e.getFormat())
+		{
+			case FLOAT:
+				return GL.GL_FLOAT;
+			case HALF_FLOAT:
+				return halfFloatVertices ? GL.GL_HALF_FLOAT : -1;
+			case UNORM8:
+				return e.getSemantic() == VertexData.Semantic.COLOR ? GL.GL_UNSIGNED_BYTE : -1;
+			case UNORM16:
+				return e.getSemantic() == VertexData.Semantic.COLOR ? GL.GL_UNSIGNED_SHORT : -1;
+			default:
+				return -1;
+		}
+	}
+	
+	/**
+	 * Find the ranges of indices to draw. If the vertex data has 
+	 * {@link Meshlets}, meshlets outside the view frustum are skipped, and
+	 * adjacent visible meshlets are merged into one range. Back faces are
+	 * not culled since OpenGL draws them.
+	 * 
+	 * @param modelView the object-to-camera transform
+	 * @return the number of ranges, stored as pairs of first and end index
+	 * 		   in {@link #ranges}
+	 */
+	private int cull(VertexData vertexData, Matrix4f modelView)
+	{
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		Meshlets meshlets = vertexData.getMeshlets();
+		if(meshlets == null)
+		{
+			ranges[0] = 0;
+			ranges[1] = indices.size();
+			return 1;
+		}
+		
+		if(ranges.length < 2*meshlets.size())
+			ranges = new int[2*meshlets.size()];
+		Matrix4f t = new Matrix4f(sceneManager.getFrustum().getProjectionMatrix());
+		t.mul(modelView);
+		culler.setTransformation(t, modelView, false);
+		int nRanges = 0;
+		for(int k=0; k<meshlets.size(); k++)
+		{
+			if(!culler.isVisible(meshlets, k)) continue;
+			int first = meshlets.getFirstIndex(k);
+			if(nRanges == 0 || ranges[2*nRanges-1] != first)
+			{
+				ranges[2*nRanges] = first;
+				nRanges++;
+			}
+			ranges[2*nRanges-1] = first + meshlets.getNumberOfIndices(k);
+		}
+		return nRanges;
+	}
+	
+	/**
+	 * Draw vertex data that is stored in buffers. The buffers are passed to
+	 * OpenGL as client side vertex arrays, and the index buffer in its own
+	 * type, without copying them. Used if OpenGL does not support buffer
+	 * objects, see {@link GLBufferCache}.
+	 * 
+	 * @param nRanges the number of index ranges to draw, see {@link #cull}
+	 */
+	private void drawArrays(VertexData vertexData, int nRanges)
+	{
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		VertexData.Layout layout = vertexData.getLayout();
+		for(int l=0; l<layout.size(); l++)
+		{
+			VertexData.VertexElement e = layout.getElement(l);
+			int k = e.getNumberOfComponents();
+			switch(e.getSemantic())
+			{
+				case POSITION:
+					gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+					gl.glVertexPointer(k, glType(e), e.getStride(), e.getBuffer());
+					break;
+				case NORMAL:
+					gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+					gl.glNormalPointer(glType(e), e.getStride(), e.getBuffer());
+					break;
+				case TEXCOORD:
+					gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+					gl.glTexCoordPointer(k, glType(e), e.getStride(), e.getBuffer());
+					break;
+				case COLOR:
+					gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+					gl.glColorPointer(k, glType(e), e.getStride(), e.getBuffer());
+					break;
+			}
+		}
+		
+		for(int r=0; r<2*nRanges; r+=2)
+		{
+			ByteBuffer b = indices.getBuffer().duplicate();
+			b.position(ranges[r]*indices.getType().getSize());
+			gl.glDrawElements(GL.GL_TRIANGLES, ranges[r+1] - ranges[r], glType(indices.getType()), b);
+		}
+		
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+	}
+
+	/**
+	 * @return the OpenGL type of an index type
+	 */
+	static int glType(IndexBuffer.Type type)
+	{
+		switch(type)
+		{
+			case UNSIGNED_BYTE:
+				return GL.GL_UNSIGNED_BYTE;
+			case UNSIGNED_SHORT:
+				return GL.GL_UNSIGNED_SHORT;
+			default:
+				return GL.GL_UNSIGNED_INT;
+		}
 	}
 
 	/**
 	 * Pass the material properties to OpenGL, including textures and shaders.
+	 * Currently only binds the texture, and selects the shader that 
+	 * {@link #useShader} binds before drawing. The state of the previous 
+	 * item is kept, and only the properties that differ are passed, so 
+	 * items with the same state should be drawn one after the other. A null
+	 * material resets the state.
 	 * 
-	 * To be implemented in the "Textures and Shading" project.
+	 * To be completed in the "Textures and Shading" project.
 	 */
 	private void setMaterial(Material m)
 	{
+		Shader shader = m != null ? m.getShader() : null;
+		GLTexture texture = m != null && m.getTexture() instanceof GLTexture ? (GLTexture)m.getTexture() : null;
+		
+		if(shader != currentShader)
+		{
+			currentShader = shader;
+			stats.shaderChanges++;
+		}
+		if(texture != currentTexture)
+		{
+			if(texture != null)
+			{
+				state.enable(GL.GL_TEXTURE_2D);
+				state.bindTexture(GL.GL_TEXTURE_2D, texture.getId());
+			} else
+			{
+				state.disable(GL.GL_TEXTURE_2D);
+			}
+			currentTexture = texture;
+			stats.textureChanges++;
+		}
+	}
+	
+	/**
+	 * Bind the program of the shader of the current material, or the fixed
+	 * function pipeline. Instanced draws bind their own program, so this is
+	 * called before each draw; if the program is bound already, the state
+	 * cache filters the call.
+	 */
+	private void useShader()
+	{
+		if(currentShader != null) currentShader.use();
+		else state.useProgram(0);
+	}
+	
+	/**
+	 * @return the number of state changes needed to set a material before
+	 * 		   drawing an item and to reset it afterwards: two for the shader
+	 * 		   and two for the texture
+	 */
+	private static int unsortedStateChanges(Material m)
+	{
+		int n = 0;
+		if(m != null && m.getShader() != null) n += 2;
+		if(m != null && m.getTexture() instanceof GLTexture) n += 2;
+		return n;
 	}
 	
 	/**
@@ -210,23 +608,14 @@ public class GLRenderContext implements RenderContext {
 	{	
 	}
 
-	/**
-	 * Disable a material.
-	 * 
-	 * To be implemented in the "Textures and Shading" project.
-	 */
-	private void cleanMaterial(Material m)
-	{
-	}
-
 	public Shader makeShader()
 	{
-		return new GLShader(gl);
+		return new GLShader(gl, state);
 	}
 	
 	public Texture makeTexture()
 	{
-		return new GLTexture(gl);
+		return new GLTexture(gl, state);
 	}
 }
 	
\ No newline at end of file
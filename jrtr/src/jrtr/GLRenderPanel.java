@@ -61,6 +61,7 @@ public abstract class GLRenderPanel implements RenderPanel {
 		
 		public void dispose(GLAutoDrawable g)
 		{
+			if(renderContext != null) renderContext.dispose(g);
 		}
 	}
 
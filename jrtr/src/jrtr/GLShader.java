@@ -15,6 +15,7 @@ import javax.media.opengl.*;
 public class GLShader implements Shader {
 	
 	private GL2 gl;	// The OpenGL context
+	private GLStateCache state;	// Filters redundant calls, or null
 	private int p;	// The shader identifier
 	
 	public GLShader(GL2 gl)
@@ -22,6 +23,16 @@ public class GLShader implements Shader {
 		this.gl = gl;
 	}
 	
+	/**
+	 * Make a shader that binds its program through a state cache, so that
+	 * binding it again while it is active costs no OpenGL call.
+	 */
+	public GLShader(GL2 gl, GLStateCache state)
+	{
+		this.gl = gl;
+		this.state = state;
+	}
+	
 	/**
 	 * Utility method. Returns the vertex/fragment shader info log as a string. 
 	 */
@@ -69,11 +80,6 @@ public class GLShader implements Shader {
 	 */
 	public void load(String vertexFileName, String fragmentFileName) throws Exception	
 	{	
-		int v,f;
-		
-		v = gl.glCreateShader(GL2.GL_VERTEX_SHADER);
-		f = gl.glCreateShader(GL2.GL_FRAGMENT_SHADER);
-
 		String vsrc[] = new String[1];
 		String fsrc[] = new String[1];
 		
@@ -90,6 +96,22 @@ public class GLShader implements Shader {
 		  fsrc[0] += line + "\n";
 		}
 		
+		compile(vsrc, fsrc);
+	}
+	
+	/**
+	 * Compile and link the vertex and fragment shader programs.
+	 * 
+	 * @param vsrc the source of the vertex shader in the first element
+	 * @param fsrc the source of the fragment shader in the first element
+	 */
+	void compile(String[] vsrc, String[] fsrc) throws Exception
+	{
+		int v,f;
+		
+		v = gl.glCreateShader(GL2.GL_VERTEX_SHADER);
+		f = gl.glCreateShader(GL2.GL_FRAGMENT_SHADER);
+		
 		gl.glShaderSource(v, 1, vsrc, (int[])null, 0);
 		gl.glCompileShader(v);
 
@@ -126,6 +148,14 @@ public class GLShader implements Shader {
 		}
 	}
 	
+	/**
+	 * @return the identifier of the shader program
+	 */
+	int getProgram()
+	{
+		return p;
+	}
+	
 	/**
 	 * Activate the shader program. As long as the shader is active, the vertex
 	 * shader is executed for each vertex, and the fragment shader for each pixel
@@ -133,7 +163,8 @@ public class GLShader implements Shader {
 	 */
 	public void use()
 	{
-		gl.glUseProgram(p);
+		if(state != null) state.useProgram(p);
+		else gl.glUseProgram(p);
 	}
 
 	/**
@@ -142,6 +173,7 @@ public class GLShader implements Shader {
 	 */
 	public void disable()
 	{
-		gl.glUseProgram(0);
+		if(state != null) state.useProgram(0);
+		else gl.glUseProgram(0);
 	}
 }
@@ -0,0 +1,212 @@
+package jrtr;
+
+import java.util.Arrays;
+import javax.media.opengl.*;
+
+/**
+ * Mirrors part of the OpenGL state, so that calls that would set the state
+ * to the value it already has are not passed to OpenGL. Each call through
+ * JOGL crosses into native code, and drivers may do work even for
+ * redundant calls.
+ * <p>
+ * The cache tracks the bound shader program, the textures bound to each
+ * target of the active texture unit, the matrix mode, enable flags and the
+ * clear color. The state is unknown at the beginning, so the first call of
+ * each kind is always passed. All changes of this state must go through
+ * the cache; after OpenGL was used directly, {@link #invalidate} needs to
+ * be called.
+ * <p>
+ * The cache counts the calls it filters and forwards. {@link GLRenderContext}
+ * resets the counters for each frame and reports them in its
+ * {@link GLFrameStats}.
+ */
+public class GLStateCache {
+
+	private static final int UNKNOWN = -1;
+
+	private GL2 gl;
+	private int program;
+	private int matrixMode;
+	private float[] clearColor = new float[4];
+	private boolean clearColorKnown;
+
+	// Bound textures by target, and enable flags by capability. Only a few
+	// of each are used, so they are searched linearly.
+	private int[] textureTargets = new int[4];
+	private int[] textures = new int[4];
+	private int nTextureTargets;
+	private int[] caps = new int[8];
+	private boolean[] enabled = new boolean[8];
+	private int nCaps;
+
+	private long filteredCalls, forwardedCalls;
+
+	public GLStateCache(GL2 gl)
+	{
+		this.gl = gl;
+		invalidate();
+	}
+
+	/**
+	 * Set the OpenGL object used for the following calls, see
+	 * {@link GLBufferCache#setGL}.
+	 */
+	public void setGL(GL2 gl)
+	{
+		this.gl = gl;
+	}
+
+	/**
+	 * Forget the mirrored state, for example after OpenGL was used without
+	 * going through the cache.
+	 */
+	public void invalidate()
+	{
+		program = UNKNOWN;
+		matrixMode = UNKNOWN;
+		clearColorKnown = false;
+		nTextureTargets = 0;
+		nCaps = 0;
+	}
+
+	/**
+	 * Calls <code>glUseProgram</code>.
+	 *
+	 * @param program the shader program, or 0 for the fixed function pipeline
+	 */
+	public void useProgram(int program)
+	{
+		if(this.program == program)
+		{
+			filteredCalls++;
+			return;
+		}
+		forwardedCalls++;
+		this.program = program;
+		gl.glUseProgram(program);
+	}
+
+	/**
+	 * Calls <code>glBindTexture</code>.
+	 */
+	public void bindTexture(int target, int texture)
+	{
+		int k = 0;
+		while(k < nTextureTargets && textureTargets[k] != target) k++;
+		if(k < nTextureTargets && textures[k] == texture)
+		{
+			filteredCalls++;
+			return;
+		}
+		if(k == nTextureTargets)
+		{
+			if(k == textureTargets.length)
+			{
+				textureTargets = Arrays.copyOf(textureTargets, 2*k);
+				textures = Arrays.copyOf(textures, 2*k);
+			}
+			textureTargets[k] = target;
+			nTextureTargets++;
+		}
+		forwardedCalls++;
+		textures[k] = texture;
+		gl.glBindTexture(target, texture);
+	}
+
+	/**
+	 * Calls <code>glMatrixMode</code>.
+	 */
+	public void matrixMode(int mode)
+	{
+		if(matrixMode == mode)
+		{
+			filteredCalls++;
+			return;
+		}
+		forwardedCalls++;
+		matrixMode = mode;
+		gl.glMatrixMode(mode);
+	}
+
+	/**
+	 * Calls <code>glEnable</code>.
+	 */
+	public void enable(int cap)
+	{
+		setEnabled(cap, true);
+	}
+
+	/**
+	 * Calls <code>glDisable</code>.
+	 */
+	public void disable(int cap)
+	{
+		setEnabled(cap, false);
+	}
+
+	private void setEnabled(int cap, boolean enable)
+	{
+		int k = 0;
+		while(k < nCaps && caps[k] != cap) k++;
+		if(k < nCaps && enabled[k] == enable)
+		{
+			filteredCalls++;
+			return;
+		}
+		if(k == nCaps)
+		{
+			if(k == caps.length)
+			{
+				caps = Arrays.copyOf(caps, 2*k);
+				enabled = Arrays.copyOf(enabled, 2*k);
+			}
+			caps[k] = cap;
+			nCaps++;
+		}
+		forwardedCalls++;
+		enabled[k] = enable;
+		if(enable) gl.glEnable(cap);
+		else gl.glDisable(cap);
+	}
+
+	/**
+	 * Calls <code>glClearColor</code>.
+	 */
+	public void clearColor(float r, float g, float b, float a)
+	{
+		float[] c = clearColor;
+		if(clearColorKnown && c[0] == r && c[1] == g && c[2] == b && c[3] == a)
+		{
+			filteredCalls++;
+			return;
+		}
+		forwardedCalls++;
+		c[0] = r; c[1] = g; c[2] = b; c[3] = a;
+		clearColorKnown = true;
+		gl.glClearColor(r, g, b, a);
+	}
+
+	/**
+	 * @return the number of calls that were not passed to OpenGL since the
+	 * 		   counters were reset
+	 */
+	public long getFilteredCalls()
+	{
+		return filteredCalls;
+	}
+
+	/**
+	 * @return the number of calls that were passed to OpenGL since the
+	 * 		   counters were reset
+	 */
+	public long getForwardedCalls()
+	{
+		return forwardedCalls;
+	}
+
+	public void resetCounters()
+	{
+		filteredCalls = 0;
+		forwardedCalls = 0;
+	}
+}
@@ -14,6 +14,7 @@ import java.nio.*;
 public class GLTexture implements Texture {
 	
 	private GL gl;			// The OpenGL context that stores the texture
+	private GLStateCache state;	// Filters redundant calls, or null
 	private IntBuffer id;	// Stores the OpenGL texture identifier
 	private int w, h;		// Width and height
 	
@@ -22,6 +23,16 @@ public class GLTexture implements Texture {
 		this.gl = gl;
 		id = IntBuffer.allocate(1);	// Make the buffer that will store the texture identifier
 	}
+	
+	/**
+	 * Make a texture that is bound through a state cache while loading, so
+	 * that the cache knows which texture is bound.
+	 */
+	public GLTexture(GL gl, GLStateCache state)
+	{
+		this(gl);
+		this.state = state;
+	}
 
 	/**
 	 * Load the texture from an image file.
@@ -35,7 +46,8 @@ public class GLTexture implements Texture {
 	
 		gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
 		gl.glGenTextures(1, id);
-		gl.glBindTexture(GL.GL_TEXTURE_2D, id.get(0));
+		if(state != null) state.bindTexture(GL.GL_TEXTURE_2D, id.get(0));
+		else gl.glBindTexture(GL.GL_TEXTURE_2D, id.get(0));
 
 		w = i.getWidth();
 		h = i.getHeight();
@@ -0,0 +1,217 @@
+package jrtr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import javax.media.opengl.*;
+import javax.vecmath.Matrix4f;
+
+/**
+ * A ring of {@link #REGIONS} buffer regions that hold the object-to-world
+ * transforms of all items of a frame. {@link GLRenderContext} writes the
+ * transforms of a frame into one region in a single pass, in the order of
+ * its {@link RenderQueue}, and draws read them as per-instance attributes,
+ * see {@link GLInstancing}. Individual draws thus only set an offset into
+ * the buffer, instead of loading a matrix.
+ * <p>
+ * While the GPU still draws the previous frames from their regions, the
+ * next region is written. The region is mapped without synchronization,
+ * so OpenGL does not wait for the GPU; instead, a fence is inserted after
+ * the draws of each frame, and the ring only waits for it when it comes
+ * back to the region, three frames later. If a frame has more items than
+ * a region holds, the buffer is reallocated and the old storage is left
+ * to the driver.
+ */
+public class GLTransformRing {
+
+	/**
+	 * The number of regions, i.e., of frames that can be in flight.
+	 */
+	public static final int REGIONS = 3;
+
+	/**
+	 * The size of one transform in bytes.
+	 */
+	public static final int MATRIX_SIZE = 16*4;
+
+	// Wait at most this long for a fence in one call, in nanoseconds
+	private static final long WAIT_TIMEOUT = 1000000000L;
+
+	private GL2 gl;
+	// Fences are only available through OpenGL 3
+	private GL3 gl3;
+	private int buffer;
+	private int capacity;
+	private final long[] fences = new long[REGIONS];
+	private int region;
+	private FloatBuffer matrices;
+	private int count;
+	private long waits;
+
+	private GLTransformRing(GL2 gl)
+	{
+		this.gl = gl;
+	}
+
+	/**
+	 * Make the ring for an OpenGL context.
+	 *
+	 * @return null if OpenGL does not support fences or mapping buffer
+	 * 		   ranges
+	 */
+	public static GLTransformRing make(GL2 gl)
+	{
+		if(!gl.isGL3() || !gl.isFunctionAvailable("glFenceSync") ||
+				!gl.isFunctionAvailable("glMapBufferRange"))
+			return null;
+		GLTransformRing ring = new GLTransformRing(gl);
+		ring.gl3 = gl.getGL3();
+		int[] names = new int[1];
+		gl.glGenBuffers(1, names, 0);
+		ring.buffer = names[0];
+		return ring;
+	}
+
+	/**
+	 * Set the OpenGL object used for the following calls, see
+	 * {@link GLBufferCache#setGL}.
+	 */
+	public void setGL(GL2 gl)
+	{
+		this.gl = gl;
+		gl3 = gl.getGL3();
+	}
+
+	/**
+	 * Start writing the transforms of a frame into the next region. Waits
+	 * until the GPU is done with the frame that used the region before.
+	 *
+	 * @param n the number of transforms that will be added
+	 * @return false if the region could not be mapped. Then no transforms
+	 * 		   can be added, and {@link #end} still needs to be called.
+	 */
+	public boolean begin(int n)
+	{
+		region = (region + 1) % REGIONS;
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+		if(n > capacity)
+		{
+			// Orphan the storage. The draws of earlier frames keep using
+			// the old storage, so their fences are not needed anymore.
+			capacity = Math.max(n, 2*capacity);
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)REGIONS*capacity*MATRIX_SIZE, null, GL2ES2.GL_STREAM_DRAW);
+			for(int r=0; r<REGIONS; r++)
+				deleteFence(r);
+		} else
+		{
+			waitForFence(region);
+		}
+
+		count = 0;
+		matrices = null;
+		if(n > 0)
+		{
+			ByteBuffer b = gl.glMapBufferRange(GL.GL_ARRAY_BUFFER, getOffset(0), (long)n*MATRIX_SIZE,
+					GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_RANGE_BIT | GL.GL_MAP_UNSYNCHRONIZED_BIT);
+			if(b == null) return false;
+			matrices = b.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		return true;
+	}
+
+	/**
+	 * Add the next transform.
+	 */
+	public void add(Matrix4f t)
+	{
+		GLInstancing.put(matrices, t);
+		count++;
+	}
+
+	/**
+	 * Finish writing. The transforms can be drawn afterwards.
+	 */
+	public void end()
+	{
+		if(matrices != null)
+			gl.glUnmapBuffer(GL.GL_ARRAY_BUFFER);
+		matrices = null;
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Insert a fence after the draws of the frame, which tells when the GPU
+	 * does not read the region anymore.
+	 */
+	public void fence()
+	{
+		deleteFence(region);
+		fences[region] = gl3.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+	}
+
+	private void waitForFence(int r)
+	{
+		if(fences[r] == 0) return;
+		int status = gl3.glClientWaitSync(fences[r], 0, 0);
+		if(status == GL3.GL_TIMEOUT_EXPIRED)
+		{
+			waits++;
+			do
+			{
+				status = gl3.glClientWaitSync(fences[r], GL3.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT);
+			} while(status == GL3.GL_TIMEOUT_EXPIRED);
+		}
+		deleteFence(r);
+	}
+
+	private void deleteFence(int r)
+	{
+		if(fences[r] != 0)
+			gl3.glDeleteSync(fences[r]);
+		fences[r] = 0;
+	}
+
+	/**
+	 * @return the buffer object that holds the ring
+	 */
+	public int getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of transform i of the current frame in the buffer,
+	 * 		   in bytes
+	 */
+	public long getOffset(int i)
+	{
+		return ((long)region*capacity + i)*MATRIX_SIZE;
+	}
+
+	/**
+	 * @return the number of transforms added since {@link #begin}
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the number of frames that had to wait for the GPU because
+	 * 		   all regions were in use, since the ring was made
+	 */
+	public long getNumberOfWaits()
+	{
+		return waits;
+	}
+
+	/**
+	 * Delete the buffer and the fences.
+	 */
+	public void dispose()
+	{
+		for(int r=0; r<REGIONS; r++)
+			deleteFence(r);
+		gl.glDeleteBuffers(1, new int[] {buffer}, 0);
+	}
+}
@@ -0,0 +1,175 @@
+package jrtr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the indices of a {@link VertexData} with as few bytes per index
+ * as possible. Meshes with at most 256 vertices use one byte per index,
+ * meshes with at most 65536 vertices use two bytes, and larger meshes four
+ * bytes. The indices are stored as unsigned values in a direct buffer in
+ * native byte order, so they can be passed to OpenGL without copying.
+ */
+public class IndexBuffer {
+
+	/**
+	 * The storage type of the indices.
+	 */
+	public enum Type
+	{
+		UNSIGNED_BYTE(1), UNSIGNED_SHORT(2), UNSIGNED_INT(4);
+
+		private final int size;
+
+		private Type(int size)
+		{
+			this.size = size;
+		}
+
+		/**
+		 * @return the number of bytes per index
+		 */
+		public int getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * @return the smallest type that can store indices of vertices
+		 * 		   0 to n-1
+		 */
+		public static Type forVertexCount(int n)
+		{
+			if(n <= 1 << 8) return UNSIGNED_BYTE;
+			if(n <= 1 << 16) return UNSIGNED_SHORT;
+			return UNSIGNED_INT;
+		}
+	}
+
+	private final Type type;
+	private final int size;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Store the given indices using the smallest type that can hold them.
+	 */
+	public IndexBuffer(int[] indices)
+	{
+		int max = 0;
+		for(int i=0; i<indices.length; i++)
+			max = Math.max(max, indices[i]);
+		type = Type.forVertexCount(max + 1);
+		size = indices.length;
+		buffer = VertexData.allocateBuffer(size*type.getSize());
+		for(int i=0; i<size; i++)
+			set(i, indices[i]);
+	}
+
+	/**
+	 * Make an index buffer with the given type. All indices are 0.
+	 */
+	public IndexBuffer(Type type, int size)
+	{
+		this.type = type;
+		this.size = size;
+		buffer = VertexData.allocateBuffer(size*type.getSize());
+	}
+
+	/**
+	 * Use indices that are already stored in a buffer, without copying them.
+	 *
+	 * @param buffer a direct buffer in native byte order that holds at least
+	 * 		  <code>size</code> indices of the given type
+	 */
+	public IndexBuffer(Type type, ByteBuffer buffer, int size)
+	{
+		this.type = type;
+		this.size = size;
+		this.buffer = buffer;
+	}
+
+	public Type getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return the number of indices
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the buffer that stores the indices, see {@link #getType}
+	 */
+	public ByteBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return index i
+	 */
+	public int get(int i)
+	{
+		switch(type)
+		{
+			case UNSIGNED_BYTE:
+				return buffer.get(i) & 0xff;
+			case UNSIGNED_SHORT:
+				return buffer.getShort(2*i) & 0xffff;
+			default:
+				return buffer.getInt(4*i);
+		}
+	}
+
+	/**
+	 * Read n indices starting at index i into dst. This avoids the type
+	 * dispatch of {@link #get} for each index.
+	 */
+	public void get(int i, int[] dst, int n)
+	{
+		switch(type)
+		{
+			case UNSIGNED_BYTE:
+				for(int k=0; k<n; k++) dst[k] = buffer.get(i+k) & 0xff;
+				break;
+			case UNSIGNED_SHORT:
+				for(int k=0; k<n; k++) dst[k] = buffer.getShort(2*(i+k)) & 0xffff;
+				break;
+			default:
+				for(int k=0; k<n; k++) dst[k] = buffer.getInt(4*(i+k));
+				break;
+		}
+	}
+
+	/**
+	 * Set index i. The value needs to fit into the type of the buffer.
+	 */
+	public void set(int i, int index)
+	{
+		switch(type)
+		{
+			case UNSIGNED_BYTE:
+				buffer.put(i, (byte)index);
+				break;
+			case UNSIGNED_SHORT:
+				buffer.putShort(2*i, (short)index);
+				break;
+			default:
+				buffer.putInt(4*i, index);
+				break;
+		}
+	}
+
+	/**
+	 * @return a copy of the indices as an <code>int</code> array
+	 */
+	public int[] toArray()
+	{
+		int[] indices = new int[size];
+		get(0, indices, size);
+		return indices;
+	}
+}
@@ -0,0 +1,158 @@
+package jrtr;
+
+import java.util.ArrayList;
+import javax.vecmath.Matrix4f;
+
+/**
+ * Levels of detail of a shape: the original {@link VertexData} followed by
+ * simplified versions with about half as many triangles each, made with a
+ * {@link MeshSimplifier} when the shape is loaded. Each level stores its
+ * error, the approximate distance to the original surface in object space.
+ * <p>
+ * A scene manager selects a level for each frame with {@link #select}: the
+ * coarsest level whose error, projected to the screen, stays below a given
+ * fraction of the viewport height. Distant objects are thus drawn with far
+ * fewer triangles, most of which would be smaller than a pixel anyway.
+ *
+ * @see Shape#setLodChain
+ */
+public class LodChain {
+
+	/**
+	 * Simplification stops at this number of triangles.
+	 */
+	public static final int MIN_TRIANGLES = 64;
+
+	private final ArrayList<VertexData> levels = new ArrayList<VertexData>();
+	private final ArrayList<Float> errors = new ArrayList<Float>();
+	private float centerX, centerY, centerZ, radius;
+
+	/**
+	 * Make a chain with a single level.
+	 */
+	public LodChain(VertexData vertexData)
+	{
+		levels.add(vertexData);
+		errors.add(0.f);
+
+		// The bounding sphere of the bounding box, for the distance to the
+		// camera
+		VertexData.VertexElement position = vertexData.getElement(VertexData.Semantic.POSITION);
+		if(position == null) return;
+		int n = vertexData.getNumberOfVertices();
+		float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for(int i=0; i<n; i++)
+		{
+			for(int c=0; c<Math.min(3, position.getNumberOfComponents()); c++)
+			{
+				min[c] = Math.min(min[c], position.get(i, c));
+				max[c] = Math.max(max[c], position.get(i, c));
+			}
+		}
+		if(n > 0)
+		{
+			centerX = .5f*(min[0] + max[0]);
+			centerY = .5f*(min[1] + max[1]);
+			centerZ = position.getNumberOfComponents() > 2 ? .5f*(min[2] + max[2]) : 0.f;
+			float dx = max[0] - min[0], dy = max[1] - min[1];
+			float dz = position.getNumberOfComponents() > 2 ? max[2] - min[2] : 0.f;
+			radius = .5f*(float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+		}
+	}
+
+	/**
+	 * Build a chain for the vertex data. Each level has about half the
+	 * triangles of the previous one. The chain ends after the given number
+	 * of levels, at {@link #MIN_TRIANGLES}, or when the mesh cannot be
+	 * simplified further.
+	 *
+	 * @param maxLevels the largest number of levels, including the original
+	 */
+	public static LodChain build(VertexData vertexData, int maxLevels)
+	{
+		LodChain chain = new LodChain(vertexData);
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		if(indices == null) return chain;
+
+		MeshSimplifier simplifier = new MeshSimplifier(vertexData);
+		int nTriangles = simplifier.getNumberOfTriangles();
+		while(chain.levels.size() < maxLevels && nTriangles > MIN_TRIANGLES)
+		{
+			int target = Math.max(nTriangles / 2, MIN_TRIANGLES);
+			int remaining = simplifier.simplify(target, Float.POSITIVE_INFINITY);
+			// Stop if less than a quarter of the triangles could be removed
+			if(remaining > nTriangles - nTriangles / 4) break;
+			chain.addLevel(simplifier.getVertexData(), simplifier.getError());
+			nTriangles = remaining;
+		}
+		return chain;
+	}
+
+	/**
+	 * Add a coarser level.
+	 *
+	 * @param error the distance of the level to the original surface, in
+	 * 		  object space
+	 */
+	public void addLevel(VertexData vertexData, float error)
+	{
+		levels.add(vertexData);
+		errors.add(error);
+	}
+
+	public int getNumberOfLevels()
+	{
+		return levels.size();
+	}
+
+	/**
+	 * @return level k, where level 0 is the original vertex data
+	 */
+	public VertexData getLevel(int k)
+	{
+		return levels.get(k);
+	}
+
+	/**
+	 * @return the object space error of level k
+	 */
+	public float getError(int k)
+	{
+		return errors.get(k);
+	}
+
+	/**
+	 * Select the coarsest level whose error, projected to the screen at the
+	 * distance of the object, is at most maxError. The projection is
+	 * computed for the point of the bounding sphere that is closest to the
+	 * camera, so the error is not underestimated for large objects.
+	 *
+	 * @param objectToCamera the object-to-camera space transform
+	 * @param frustum the view frustum
+	 * @param maxError the largest error on the screen, as a fraction of
+	 * 		  the viewport height
+	 * @return the index of the level
+	 */
+	public int select(Matrix4f objectToCamera, Frustum frustum, float maxError)
+	{
+		Matrix4f m = objectToCamera;
+		Matrix4f p = frustum.getProjectionMatrix();
+		// The largest scale factor of the transform, from its columns
+		float sx = m.m00*m.m00 + m.m10*m.m10 + m.m20*m.m20;
+		float sy = m.m01*m.m01 + m.m11*m.m11 + m.m21*m.m21;
+		float sz = m.m02*m.m02 + m.m12*m.m12 + m.m22*m.m22;
+		float scale = (float)Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+
+		// The camera looks along the negative z axis
+		float z = m.m20*centerX + m.m21*centerY + m.m22*centerZ + m.m23 + radius*scale;
+		float w = p.m32*z + p.m33;
+		if(w <= 0) return 0;
+
+		// The viewport is two units high in normalized device coordinates
+		float screenPerUnit = .5f*Math.abs(p.m11)*scale/w;
+		int k = 0;
+		while(k+1 < levels.size() && errors.get(k+1)*screenPerUnit <= maxError) k++;
+		return k;
+	}
+}
@@ -2,7 +2,40 @@ package jrtr;
 
 /**
  * Stores the properties of a material. You will implement this 
- * class in the "Shading and Texturing" project.
+ * class in the "Shading and Texturing" project. Currently, a material
+ * only stores a texture and a shader.
  */
 public class Material {
+
+	private Texture texture;
+	private Shader shader;
+
+	/**
+	 * Set the texture, made by {@link RenderContext#makeTexture} of the
+	 * render context that draws the shape. 
+	 */
+	public void setTexture(Texture texture)
+	{
+		this.texture = texture;
+	}
+
+	public Texture getTexture()
+	{
+		return texture;
+	}
+	
+	/**
+	 * Set the shader, made by {@link RenderContext#makeShader} of the
+	 * render context that draws the shape. Without a shader, the fixed
+	 * function pipeline is used.
+	 */
+	public void setShader(Shader shader)
+	{
+		this.shader = shader;
+	}
+	
+	public Shader getShader()
+	{
+		return shader;
+	}
 }
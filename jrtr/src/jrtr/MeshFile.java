@@ -0,0 +1,273 @@
+package jrtr;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reads and writes {@link VertexData} in a compact binary format that is
+ * loaded by mapping the file into memory instead of parsing it. The
+ * operating system reads the vertex data from disk when it is first used.
+ * Only the indices are read while loading, to check that they refer to
+ * vertices in the file.
+ * <p>
+ * All values are little endian. The file consists of:
+ * <ul>
+ * <li>a header: the magic number <code>JRTM</code>, the version, the number
+ * of vertices, the number of elements, the vertex stride in bytes, the
+ * number of indices and the bytes per index (0 if there are no indices), all
+ * as <code>int</code>s, followed by the offsets of the vertex and index
+ * data in the file as <code>long</code>s</li>
+ * <li>one descriptor per element: the {@link VertexData.Semantic}, the
+ * number of components, the {@link VertexFormat} and the offset of the
+ * element within a vertex, as <code>int</code>s</li>
+ * <li>the interleaved vertex data, starting at a multiple of
+ * {@link #ALIGNMENT} bytes</li>
+ * <li>the indices, starting at a multiple of {@link #ALIGNMENT} bytes</li>
+ * </ul>
+ */
+public class MeshFile {
+
+	public static final int MAGIC = 0x4d54524a; // "JRTM" in little endian
+	public static final int VERSION = 1;
+
+	/**
+	 * Alignment of the vertex and index data in the file, in bytes.
+	 */
+	public static final int ALIGNMENT = 64;
+
+	private static final int HEADER_SIZE = 7*4 + 2*8;
+	private static final int DESCRIPTOR_SIZE = 4*4;
+
+	// Number of vertices encoded, or indices checked, at a time
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * Map a mesh file into memory. The vertex data and the indices are 
+	 * read-only views of the mapped file, so they cannot be changed, for 
+	 * example with {@link MeshOptimizer}. Meshes should be optimized before
+	 * they are written.
+	 *
+	 * @throws IOException if the file cannot be read, is not a mesh file or
+	 * 		   is corrupt, if an index is not smaller than the number of
+	 * 		   vertices, if its vertices or indices take more than 2 GB, or
+	 * 		   if the platform is not little endian
+	 */
+	public static VertexData load(String fileName) throws IOException
+	{
+		if(ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+			throw new IOException("Mesh files can only be mapped on little endian platforms");
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			if(channel.size() < HEADER_SIZE)
+				throw new IOException(fileName + " is not a mesh file");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if(header.getInt() != MAGIC)
+				throw new IOException(fileName + " is not a mesh file");
+			if(header.getInt() != VERSION)
+				throw new IOException(fileName + " has an unsupported version");
+			int n = header.getInt();
+			int nElements = header.getInt();
+			int stride = header.getInt();
+			int nIndices = header.getInt();
+			int indexSize = header.getInt();
+			long vertexOffset = header.getLong();
+			long indexOffset = header.getLong();
+
+			// Mapped regions are limited to Integer.MAX_VALUE bytes. With all
+			// values checked to be in range, the sums below do not overflow.
+			long vertexBytes = (long)n*stride, indexBytes = (long)nIndices*indexSize;
+			if(n < 0 || stride < 0 || nIndices < 0 || indexSize < 0 || vertexOffset < 0 || indexOffset < 0 ||
+					nElements < 0 || nElements > VertexData.Semantic.values().length ||
+					vertexBytes > Integer.MAX_VALUE || indexBytes > Integer.MAX_VALUE ||
+					HEADER_SIZE + nElements*DESCRIPTOR_SIZE > channel.size() ||
+					vertexOffset > channel.size() - vertexBytes || indexOffset > channel.size() - indexBytes)
+				throw new IOException(fileName + " is corrupt");
+
+			ByteBuffer descriptors = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+					nElements*DESCRIPTOR_SIZE);
+			descriptors.order(ByteOrder.LITTLE_ENDIAN);
+
+			VertexData vertexData = new VertexData(n);
+			MappedByteBuffer vertices = channel.map(FileChannel.MapMode.READ_ONLY, vertexOffset, vertexBytes);
+			vertices.order(ByteOrder.nativeOrder());
+			for(int k=0; k<nElements; k++)
+			{
+				VertexData.Semantic s = VertexData.Semantic.values()[descriptors.getInt()];
+				int components = descriptors.getInt();
+				VertexFormat format = VertexFormat.values()[descriptors.getInt()];
+				int offset = descriptors.getInt();
+				if(components < 1 || components > 4 || offset < 0 || offset > stride - format.getSize(components))
+					throw new IOException(fileName + " is corrupt");
+				// Without vertices, the mapped region is empty
+				vertexData.addElement(vertices, stride, n > 0 ? offset : 0, s, components, format);
+			}
+
+			if(indexSize > 0)
+			{
+				MappedByteBuffer indices = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexBytes);
+				indices.order(ByteOrder.nativeOrder());
+				IndexBuffer indexBuffer = new IndexBuffer(indexType(indexSize), indices, nIndices);
+				checkIndices(indexBuffer, n, fileName);
+				vertexData.addIndices(indexBuffer);
+			}
+			return vertexData;
+		} catch(IndexOutOfBoundsException e)
+		{
+			throw new IOException(fileName + " is corrupt");
+		} finally
+		{
+			// The mappings remain valid after the file is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Check that all indices refer to one of the n vertices.
+	 */
+	private static void checkIndices(IndexBuffer indices, int n, String fileName) throws IOException
+	{
+		int[] chunk = new int[Math.min(indices.size(), CHUNK_SIZE)];
+		for(int first=0; first<indices.size(); first+=CHUNK_SIZE)
+		{
+			int count = Math.min(CHUNK_SIZE, indices.size() - first);
+			indices.get(first, chunk, count);
+			for(int i=0; i<count; i++)
+			{
+				// Negative values are int indices of 2^31 or more
+				if(chunk[i] < 0 || chunk[i] >= n)
+					throw new IOException(fileName + ": index out of range");
+			}
+		}
+	}
+
+	private static IndexBuffer.Type indexType(int size) throws IOException
+	{
+		for(IndexBuffer.Type t : IndexBuffer.Type.values())
+		{
+			if(t.getSize() == size) return t;
+		}
+		throw new IOException("Unsupported index size " + size);
+	}
+
+	/**
+	 * Write vertex data to a mesh file. Elements stored in buffers keep
+	 * their {@link VertexFormat}, elements stored in arrays are written as
+	 * floats.
+	 */
+	public static void write(VertexData vertexData, String fileName) throws IOException
+	{
+		List<VertexData.VertexElement> elements = vertexData.getElements();
+		int n = vertexData.getNumberOfVertices();
+		int nElements = elements.size();
+
+		// Interleaved layout, with each element aligned to four bytes
+		VertexFormat[] formats = new VertexFormat[nElements];
+		int[] offsets = new int[nElements];
+		int stride = 0;
+		for(int k=0; k<nElements; k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			formats[k] = e.getFormat();
+			offsets[k] = stride;
+			stride += (formats[k].getSize(e.getNumberOfComponents()) + 3) & ~3;
+		}
+
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		int nIndices = indices != null ? indices.size() : 0;
+		int indexSize = indices != null ? indices.getType().getSize() : 0;
+		long vertexOffset = align(HEADER_SIZE + nElements*DESCRIPTOR_SIZE);
+		long indexOffset = align(vertexOffset + (long)n*stride);
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate((int)vertexOffset).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(nElements).putInt(stride);
+			header.putInt(nIndices).putInt(indexSize).putLong(vertexOffset).putLong(indexOffset);
+			for(int k=0; k<nElements; k++)
+			{
+				VertexData.VertexElement e = elements.get(k);
+				header.putInt(e.getSemantic().ordinal()).putInt(e.getNumberOfComponents());
+				header.putInt(formats[k].ordinal()).putInt(offsets[k]);
+			}
+			header.clear();
+			channel.write(header, 0);
+
+			ByteBuffer chunk = ByteBuffer.allocate(Math.max(1, Math.min(n, CHUNK_SIZE)*stride));
+			chunk.order(ByteOrder.LITTLE_ENDIAN);
+			for(int first=0; first<n; first+=CHUNK_SIZE)
+			{
+				int count = Math.min(CHUNK_SIZE, n - first);
+				for(int k=0; k<nElements; k++)
+				{
+					VertexData.VertexElement e = elements.get(k);
+					int m = e.getNumberOfComponents();
+					for(int i=0; i<count; i++)
+					{
+						int o = i*stride + offsets[k];
+						if(formats[k] == VertexFormat.OCTAHEDRAL)
+						{
+							VertexFormat.octahedralEncode(chunk, o, e.get(first+i, 0), e.get(first+i, 1),
+									e.get(first+i, 2));
+						} else
+						{
+							for(int c=0; c<m; c++)
+								formats[k].put(chunk, o, c, e.get(first+i, c));
+						}
+					}
+				}
+				chunk.clear().limit(count*stride);
+				channel.write(chunk, vertexOffset + (long)first*stride);
+			}
+
+			if(indices != null)
+			{
+				ByteBuffer out = ByteBuffer.allocate(Math.min(nIndices, CHUNK_SIZE)*indexSize);
+				out.order(ByteOrder.LITTLE_ENDIAN);
+				for(int first=0; first<nIndices; first+=CHUNK_SIZE)
+				{
+					int count = Math.min(CHUNK_SIZE, nIndices - first);
+					out.clear();
+					for(int j=0; j<count; j++)
+					{
+						int index = indices.get(first+j);
+						switch(indices.getType())
+						{
+							case UNSIGNED_BYTE:
+								out.put((byte)index);
+								break;
+							case UNSIGNED_SHORT:
+								out.putShort((short)index);
+								break;
+							default:
+								out.putInt(index);
+								break;
+						}
+					}
+					out.flip();
+					channel.write(out, indexOffset + (long)first*indexSize);
+				}
+			}
+		} finally
+		{
+			file.close();
+		}
+	}
+
+	private static long align(long offset)
+	{
+		return (offset + ALIGNMENT - 1) & ~(long)(ALIGNMENT - 1);
+	}
+}
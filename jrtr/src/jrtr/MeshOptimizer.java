@@ -0,0 +1,350 @@
+package jrtr;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles and vertices of a {@link VertexData} so that it
+ * renders faster. This is meant to be run once, after a mesh was built or
+ * loaded.
+ * <p>
+ * Triangles are reordered with Tom Forsyth's linear-speed vertex cache
+ * optimization, which greedily emits the triangle whose vertices are most
+ * likely to still be in the post-transform vertex cache of the graphics
+ * hardware. Afterwards, vertices are renumbered in the order in which the
+ * triangles first use them, so that vertex data is fetched from memory
+ * mostly sequentially.
+ * <p>
+ * The quality of a triangle order is measured by the average cache miss
+ * ratio (ACMR), the number of vertices transformed per triangle, simulated
+ * with a FIFO cache like in most graphics hardware. Its lower bound is the
+ * number of vertices divided by the number of triangles. The post-transform
+ * cache of the software renderer ({@link SWVertexCache}) holds all vertices
+ * of a draw call, so it always reaches the lower bound, and for it only the
+ * vertex order matters.
+ */
+public class MeshOptimizer {
+
+	/**
+	 * The size of the cache modeled while reordering triangles.
+	 */
+	public static final int CACHE_SIZE = 32;
+
+	/**
+	 * The size of the FIFO cache used to report the ACMR.
+	 */
+	public static final int FIFO_SIZE = 16;
+
+	// Parameters of the vertex score, from Forsyth's article
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = .75f;
+	private static final float VALENCE_BOOST_SCALE = 2.f;
+	private static final float VALENCE_BOOST_POWER = .5f;
+
+	/**
+	 * The ACMR of a mesh before and after optimization.
+	 */
+	public static class Report {
+
+		private final float acmrBefore, acmrAfter, minimum;
+
+		Report(float acmrBefore, float acmrAfter, float minimum)
+		{
+			this.acmrBefore = acmrBefore;
+			this.acmrAfter = acmrAfter;
+			this.minimum = minimum;
+		}
+
+		public float getAcmrBefore()
+		{
+			return acmrBefore;
+		}
+
+		public float getAcmrAfter()
+		{
+			return acmrAfter;
+		}
+
+		/**
+		 * @return the lowest possible ACMR, i.e., the number of referenced
+		 * 		   vertices divided by the number of triangles
+		 */
+		public float getMinimumAcmr()
+		{
+			return minimum;
+		}
+
+		public String toString()
+		{
+			return String.format("ACMR %.3f -> %.3f (FIFO %d, minimum %.3f)", acmrBefore, acmrAfter,
+					FIFO_SIZE, minimum);
+		}
+	}
+
+	/**
+	 * Reorder the triangles and vertices of the vertex data in place.
+	 *
+	 * @return the ACMR before and after
+	 */
+	public static Report optimize(VertexData vertexData)
+	{
+		IndexBuffer indexBuffer = vertexData.getIndexBuffer();
+		if(indexBuffer == null) return new Report(0, 0, 0);
+		int[] indices = indexBuffer.toArray();
+		int n = vertexData.getNumberOfVertices();
+		float before = acmr(indices, FIFO_SIZE);
+
+		indices = optimizeTriangleOrder(indices, n);
+		int[] order = optimizeVertexOrder(indices, n);
+		remapVertices(vertexData, order);
+
+		IndexBuffer optimized = new IndexBuffer(indexBuffer.getType(), indices.length);
+		for(int i=0; i<indices.length; i++)
+			optimized.set(i, indices[i]);
+		vertexData.addIndices(optimized);
+
+		float after = acmr(indices, FIFO_SIZE);
+		return new Report(before, after, minimumAcmr(indices, n));
+	}
+
+	/**
+	 * Simulate a FIFO vertex cache.
+	 *
+	 * @return the number of cache misses per triangle
+	 */
+	public static float acmr(int[] indices, int cacheSize)
+	{
+		int nTriangles = indices.length / 3;
+		if(nTriangles == 0) return 0;
+		int max = 0;
+		for(int i : indices) max = Math.max(max, i);
+
+		// time[v] is the number of misses when v was last inserted
+		int[] time = new int[max+1];
+		Arrays.fill(time, Integer.MIN_VALUE / 2);
+		int misses = 0;
+		for(int j=0; j<3*nTriangles; j++)
+		{
+			int v = indices[j];
+			if(misses - time[v] >= cacheSize)
+			{
+				time[v] = misses;
+				misses++;
+			}
+		}
+		return (float)misses / nTriangles;
+	}
+
+	private static float minimumAcmr(int[] indices, int n)
+	{
+		boolean[] used = new boolean[n];
+		int count = 0;
+		for(int i : indices)
+		{
+			if(!used[i])
+			{
+				used[i] = true;
+				count++;
+			}
+		}
+		return indices.length < 3 ? 0 : (float)count / (indices.length / 3);
+	}
+
+	/**
+	 * Reorder triangles with Forsyth's algorithm.
+	 *
+	 * @param indices three indices per triangle
+	 * @param n the number of vertices
+	 * @return the reordered indices
+	 */
+	static int[] optimizeTriangleOrder(int[] indices, int n)
+	{
+		int nTriangles = indices.length / 3;
+
+		// Triangles adjacent to each vertex, in compressed row storage.
+		// remaining[v] of them have not been emitted yet.
+		int[] offsets = new int[n+1];
+		for(int j=0; j<3*nTriangles; j++) offsets[indices[j]+1]++;
+		for(int v=0; v<n; v++) offsets[v+1] += offsets[v];
+		int[] remaining = new int[n];
+		int[] adjacency = new int[3*nTriangles];
+		for(int j=0; j<3*nTriangles; j++)
+		{
+			int v = indices[j];
+			adjacency[offsets[v] + remaining[v]++] = j/3;
+		}
+
+		int[] cachePosition = new int[n];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScore = new float[n];
+		for(int v=0; v<n; v++) vertexScore[v] = score(-1, remaining[v]);
+		boolean[] emitted = new boolean[nTriangles];
+
+		int[] cache = new int[CACHE_SIZE+3], newCache = new int[CACHE_SIZE+3];
+		int cacheSize = 0;
+		int[] result = new int[3*nTriangles];
+		int best = -1, cursor = 0;
+		for(int k=0; k<nTriangles; k++)
+		{
+			// Fall back to the next triangle in the original order if no
+			// triangle is adjacent to the cache
+			if(best < 0)
+			{
+				while(emitted[cursor]) cursor++;
+				best = cursor;
+			}
+			int t = best;
+			emitted[t] = true;
+			System.arraycopy(indices, 3*t, result, 3*k, 3);
+
+			// Remove the triangle from the adjacency of its vertices
+			for(int c=0; c<3; c++)
+			{
+				int v = indices[3*t+c];
+				int o = offsets[v], r = --remaining[v];
+				for(int a=o; a<=o+r; a++)
+				{
+					if(adjacency[a] == t)
+					{
+						adjacency[a] = adjacency[o+r];
+						break;
+					}
+				}
+			}
+
+			// Move the vertices of the triangle to the front of the LRU cache
+			int newSize = 0;
+			for(int c=0; c<3; c++)
+				newCache[newSize++] = indices[3*t+c];
+			for(int c=0; c<cacheSize; c++)
+			{
+				int v = cache[c];
+				if(v != indices[3*t] && v != indices[3*t+1] && v != indices[3*t+2])
+					newCache[newSize++] = v;
+			}
+			int[] swap = cache; cache = newCache; newCache = swap;
+			cacheSize = Math.min(newSize, CACHE_SIZE);
+
+			// Update the scores of the vertices in the cache and of the ones 
+			// that just dropped out, and find the best triangle using them
+			for(int c=0; c<newSize; c++)
+			{
+				int v = cache[c];
+				cachePosition[v] = c < CACHE_SIZE ? c : -1;
+				vertexScore[v] = score(cachePosition[v], remaining[v]);
+			}
+			best = -1;
+			float bestScore = -1;
+			for(int c=0; c<newSize; c++)
+			{
+				int v = cache[c];
+				for(int a=offsets[v]; a<offsets[v]+remaining[v]; a++)
+				{
+					int u = adjacency[a];
+					float s = vertexScore[indices[3*u]] + vertexScore[indices[3*u+1]] + vertexScore[indices[3*u+2]];
+					if(s > bestScore)
+					{
+						bestScore = s;
+						best = u;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The score of a vertex, given its position in the LRU cache (or -1)
+	 * and the number of triangles that still use it.
+	 */
+	private static float score(int cachePosition, int remaining)
+	{
+		if(remaining == 0) return -1.f;
+		float score = 0;
+		if(cachePosition >= 0)
+		{
+			if(cachePosition < 3)
+			{
+				// The last triangle was just emitted; using its vertices
+				// again is good, but slightly worse than the rest of the
+				// cache to avoid long strips
+				score = LAST_TRIANGLE_SCORE;
+			} else
+			{
+				float s = 1.f - (float)(cachePosition - 3) / (CACHE_SIZE - 3);
+				score = (float)Math.pow(s, CACHE_DECAY_POWER);
+			}
+		}
+		// Prefer vertices with few remaining triangles, so that they can
+		// leave the cache
+		score += VALENCE_BOOST_SCALE * (float)Math.pow(remaining, -VALENCE_BOOST_POWER);
+		return score;
+	}
+
+	/**
+	 * Renumber vertices in the order of their first use and rewrite the
+	 * indices accordingly. Unused vertices are moved to the end.
+	 *
+	 * @return order[k] is the old index of the vertex that becomes vertex k
+	 */
+	static int[] optimizeVertexOrder(int[] indices, int n)
+	{
+		int[] newIndex = new int[n];
+		Arrays.fill(newIndex, -1);
+		int[] order = new int[n];
+		int k = 0;
+		for(int j=0; j<indices.length; j++)
+		{
+			int v = indices[j];
+			if(newIndex[v] < 0)
+			{
+				newIndex[v] = k;
+				order[k++] = v;
+			}
+			indices[j] = newIndex[v];
+		}
+		for(int v=0; v<n; v++)
+		{
+			if(newIndex[v] < 0)
+				order[k++] = v;
+		}
+		return order;
+	}
+
+	/**
+	 * Permute the vertices of all elements in place, such that vertex k
+	 * becomes the old vertex order[k]. Elements in buffers are permuted by
+	 * copying their bytes, so quantized values are not encoded again.
+	 */
+	private static void remapVertices(VertexData vertexData, int[] order)
+	{
+		int n = order.length;
+		for(VertexData.VertexElement e : vertexData.getElements())
+		{
+			int m = e.getNumberOfComponents();
+			float[] data = e.getData();
+			if(data != null)
+			{
+				float[] copy = new float[n*m];
+				for(int k=0; k<n; k++)
+					System.arraycopy(data, order[k]*m, copy, k*m, m);
+				System.arraycopy(copy, 0, data, 0, n*m);
+			} else
+			{
+				// Only the bytes of this element are copied, since other
+				// elements may be interleaved in the same buffer
+				ByteBuffer buffer = e.getBuffer();
+				int stride = e.getStride();
+				int size = e.getFormat().getSize(m);
+				byte[] copy = new byte[n*size];
+				for(int k=0; k<n; k++)
+					for(int b=0; b<size; b++)
+						copy[k*size+b] = buffer.get(order[k]*stride + b);
+				for(int k=0; k<n; k++)
+					for(int b=0; b<size; b++)
+						buffer.put(k*stride + b, copy[k*size+b]);
+			}
+		}
+		vertexData.markDirty();
+	}
+}
@@ -0,0 +1,508 @@
+package jrtr;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces the number of triangles of a {@link VertexData} with quadric
+ * error edge collapses (Garland and Heckbert). Each vertex accumulates the
+ * planes of its triangles in a quadric, a symmetric 4x4 matrix that gives
+ * the sum of squared distances of a point to these planes. The edge whose
+ * collapse adds the smallest error is collapsed first.
+ * <p>
+ * Edges are collapsed onto one of their vertices, so no new vertices are
+ * made and the colors, texture coordinates and normals of the remaining
+ * vertices stay valid. Vertices that share their position with other
+ * vertices (seams of texture coordinates or normals) and vertices on the
+ * border of the mesh are never moved, so the mesh does not tear open.
+ * Collapses that would flip a triangle are rejected.
+ * <p>
+ * A simplifier can be run several times with decreasing targets, see
+ * {@link LodChain}. The quadrics keep the planes of the original mesh, so
+ * the error is always measured against the original surface.
+ */
+public class MeshSimplifier {
+
+	private final VertexData vertexData;
+	private final int n;
+	private final float[] px, py, pz;
+
+	// Three vertex indices per triangle, and whether it was removed
+	private final int[] triangles;
+	private final boolean[] removed;
+	private int nTriangles;
+
+	// The triangles of each vertex. Lists may contain triangles that were
+	// removed or no longer use the vertex; these are skipped.
+	private final int[][] adjacency;
+	private final int[] adjacencySize;
+
+	// Ten coefficients of the quadric of each position, shared by all
+	// vertices with that position
+	private final int[] positionOf;
+	private final double[] quadrics;
+	private final boolean[] locked;
+
+	// Binary heap of candidate collapses, ordered by cost. A candidate is
+	// out of date if either vertex changed since it was pushed.
+	private final int[] version;
+	private double[] heapCost = new double[1024];
+	private int[] heapFrom = new int[1024], heapTo = new int[1024];
+	private int[] heapFromVersion = new int[1024], heapToVersion = new int[1024];
+	private int heapSize;
+	private double popCost;
+	private int popFrom, popTo, popFromVersion, popToVersion;
+
+	private double error;
+	private int[] visited;
+	private int collapses;
+
+	/**
+	 * Prepare to simplify the vertex data. Every three consecutive indices
+	 * are taken as a triangle. The vertex data itself is not changed.
+	 */
+	public MeshSimplifier(VertexData vertexData)
+	{
+		this.vertexData = vertexData;
+		n = vertexData.getNumberOfVertices();
+		VertexData.VertexElement position = vertexData.getElement(VertexData.Semantic.POSITION);
+		px = new float[n]; py = new float[n]; pz = new float[n];
+		for(int i=0; i<n && position!=null; i++)
+		{
+			px[i] = position.get(i, 0);
+			py[i] = position.get(i, 1);
+			pz[i] = position.getNumberOfComponents() > 2 ? position.get(i, 2) : 0.f;
+		}
+
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		triangles = indices != null && position != null ? indices.toArray() : new int[0];
+		nTriangles = triangles.length / 3;
+		removed = new boolean[nTriangles];
+
+		adjacencySize = new int[n];
+		for(int j=0; j<3*nTriangles; j++) adjacencySize[triangles[j]]++;
+		adjacency = new int[n][];
+		for(int i=0; i<n; i++) adjacency[i] = new int[adjacencySize[i]];
+		Arrays.fill(adjacencySize, 0);
+		for(int j=0; j<3*nTriangles; j++)
+		{
+			int i = triangles[j];
+			adjacency[i][adjacencySize[i]++] = j/3;
+		}
+
+		// Vertices with equal positions share a quadric, and are locked
+		positionOf = new int[n];
+		locked = new boolean[n];
+		int nPositions = groupPositions();
+		lockBorders(nPositions);
+
+		quadrics = new double[10*nPositions];
+		for(int t=0; t<nTriangles; t++)
+			addTriangleQuadric(t);
+
+		version = new int[n];
+		visited = new int[n];
+		for(int t=0; t<nTriangles; t++)
+		{
+			for(int c=0; c<3; c++)
+				push(triangles[3*t+c], triangles[3*t+(c+1)%3]);
+		}
+	}
+
+	/**
+	 * Number the distinct positions. Vertices are sorted by a hash of their
+	 * position, and vertices with equal hashes are compared exactly.
+	 * Vertices that share their position with another vertex are locked.
+	 *
+	 * @return the number of distinct positions
+	 */
+	private int groupPositions()
+	{
+		long[] keys = new long[n];
+		for(int i=0; i<n; i++)
+		{
+			int h = (Float.floatToIntBits(px[i] + 0.f) * 31 + Float.floatToIntBits(py[i] + 0.f)) * 31 +
+					Float.floatToIntBits(pz[i] + 0.f);
+			keys[i] = ((long)h << 32) | i;
+		}
+		Arrays.sort(keys);
+		int nPositions = 0;
+		for(int first=0, end; first<n; first=end)
+		{
+			end = first+1;
+			while(end < n && keys[end] >>> 32 == keys[first] >>> 32) end++;
+			for(int a=first; a<end; a++)
+			{
+				int i = (int)keys[a];
+				positionOf[i] = -1;
+				for(int b=first; b<a; b++)
+				{
+					int j = (int)keys[b];
+					if(px[i] == px[j] && py[i] == py[j] && pz[i] == pz[j])
+					{
+						positionOf[i] = positionOf[j];
+						locked[i] = locked[j] = true;
+						break;
+					}
+				}
+				if(positionOf[i] < 0) positionOf[i] = nPositions++;
+			}
+		}
+		return nPositions;
+	}
+
+	/**
+	 * Lock the vertices of edges that belong to one triangle, or to more
+	 * than two. Edges are compared by the positions of their vertices, and
+	 * counted by sorting them.
+	 */
+	private void lockBorders(int nPositions)
+	{
+		long[] edges = new long[3*nTriangles];
+		for(int t=0; t<nTriangles; t++)
+		{
+			for(int c=0; c<3; c++)
+			{
+				int a = positionOf[triangles[3*t+c]], b = positionOf[triangles[3*t+(c+1)%3]];
+				edges[3*t+c] = a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+			}
+		}
+		Arrays.sort(edges);
+		boolean[] lockedPosition = new boolean[nPositions];
+		for(int first=0, end; first<edges.length; first=end)
+		{
+			end = first+1;
+			while(end < edges.length && edges[end] == edges[first]) end++;
+			if(end - first != 2)
+			{
+				lockedPosition[(int)(edges[first] >>> 32)] = true;
+				lockedPosition[(int)edges[first]] = true;
+			}
+		}
+		for(int i=0; i<n; i++)
+			if(lockedPosition[positionOf[i]]) locked[i] = true;
+	}
+
+	/**
+	 * Add the plane of triangle t to the quadrics of its vertices. Planes
+	 * are not weighted by area, so that the error stays a squared distance.
+	 */
+	private void addTriangleQuadric(int t)
+	{
+		int i0 = triangles[3*t], i1 = triangles[3*t+1], i2 = triangles[3*t+2];
+		double ux = px[i1] - px[i0], uy = py[i1] - py[i0], uz = pz[i1] - pz[i0];
+		double vx = px[i2] - px[i0], vy = py[i2] - py[i0], vz = pz[i2] - pz[i0];
+		double nx = uy*vz - uz*vy, ny = uz*vx - ux*vz, nz = ux*vy - uy*vx;
+		double l = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		if(l == 0) return;
+		nx /= l; ny /= l; nz /= l;
+		double d = -(nx*px[i0] + ny*py[i0] + nz*pz[i0]);
+		double[] plane = {nx*nx, nx*ny, nx*nz, nx*d, ny*ny, ny*nz, ny*d, nz*nz, nz*d, d*d};
+		for(int c=0; c<3; c++)
+		{
+			int q = 10*positionOf[triangles[3*t+c]];
+			for(int k=0; k<10; k++)
+				quadrics[q+k] += plane[k];
+		}
+	}
+
+	/**
+	 * @return the error of the quadrics of the positions of u and v at
+	 * 		   the position of v
+	 */
+	private double cost(int u, int v)
+	{
+		int a = 10*positionOf[u], b = 10*positionOf[v];
+		double[] q = quadrics;
+		double x = px[v], y = py[v], z = pz[v];
+		double e = 0;
+		for(int k=0; k<2; k++, a=b)
+		{
+			e += q[a]*x*x + 2*q[a+1]*x*y + 2*q[a+2]*x*z + 2*q[a+3]*x +
+					q[a+4]*y*y + 2*q[a+5]*y*z + 2*q[a+6]*y +
+					q[a+7]*z*z + 2*q[a+8]*z + q[a+9];
+		}
+		return Math.max(e, 0);
+	}
+
+	/**
+	 * Push the collapse of u onto v, if u may be moved.
+	 */
+	private void push(int u, int v)
+	{
+		if(locked[u] || u == v) return;
+		if(heapSize == heapCost.length)
+		{
+			int c = 2*heapSize;
+			heapCost = Arrays.copyOf(heapCost, c);
+			heapFrom = Arrays.copyOf(heapFrom, c);
+			heapTo = Arrays.copyOf(heapTo, c);
+			heapFromVersion = Arrays.copyOf(heapFromVersion, c);
+			heapToVersion = Arrays.copyOf(heapToVersion, c);
+		}
+		double cost = cost(u, v);
+		int k = heapSize++;
+		while(k > 0)
+		{
+			int parent = (k-1)/2;
+			if(heapCost[parent] <= cost) break;
+			move(parent, k);
+			k = parent;
+		}
+		heapCost[k] = cost;
+		heapFrom[k] = u;
+		heapTo[k] = v;
+		heapFromVersion[k] = version[u];
+		heapToVersion[k] = version[v];
+	}
+
+	private void move(int from, int to)
+	{
+		heapCost[to] = heapCost[from];
+		heapFrom[to] = heapFrom[from];
+		heapTo[to] = heapTo[from];
+		heapFromVersion[to] = heapFromVersion[from];
+		heapToVersion[to] = heapToVersion[from];
+	}
+
+	/**
+	 * Remove the cheapest candidate and store it in the pop fields.
+	 */
+	private void pop()
+	{
+		popCost = heapCost[0];
+		popFrom = heapFrom[0];
+		popTo = heapTo[0];
+		popFromVersion = heapFromVersion[0];
+		popToVersion = heapToVersion[0];
+
+		int last = --heapSize;
+		double cost = heapCost[last];
+		int k = 0;
+		while(true)
+		{
+			int child = 2*k+1;
+			if(child >= last) break;
+			if(child+1 < last && heapCost[child+1] < heapCost[child]) child++;
+			if(heapCost[child] >= cost) break;
+			move(child, k);
+			k = child;
+		}
+		move(last, k);
+	}
+
+	/**
+	 * Collapse edges until at most the given number of triangles remain, or
+	 * no edge can be collapsed anymore.
+	 *
+	 * @param maxError collapses with a larger error, measured as the
+	 * 		  square root of the quadric error, are not done
+	 * @return the number of remaining triangles
+	 */
+	public int simplify(int targetTriangles, float maxError)
+	{
+		double maxCost = (double)maxError*maxError;
+		while(nTriangles > targetTriangles && heapSize > 0)
+		{
+			if(heapCost[0] > maxCost) break;
+			pop();
+			int u = popFrom, v = popTo;
+			if(popFromVersion != version[u] || popToVersion != version[v]) continue;
+			if(!canCollapse(u, v)) continue;
+			error = Math.max(error, popCost);
+			collapse(u, v);
+		}
+		return nTriangles;
+	}
+
+	/**
+	 * @return whether u and v still form an edge and moving u onto v does
+	 * 		   not flip any triangle
+	 */
+	private boolean canCollapse(int u, int v)
+	{
+		boolean edge = false;
+		int[] adj = adjacency[u];
+		for(int a=0; a<adjacencySize[u]; a++)
+		{
+			int t = adj[a];
+			if(removed[t]) continue;
+			int c = corner(t, u);
+			if(c < 0) continue;
+			int i1 = triangles[3*t+(c+1)%3], i2 = triangles[3*t+(c+2)%3];
+			if(i1 == v || i2 == v)
+			{
+				edge = true;
+				continue;
+			}
+			// Normal before and after moving u onto v
+			double ax = px[i1] - px[u], ay = py[i1] - py[u], az = pz[i1] - pz[u];
+			double bx = px[i2] - px[u], by = py[i2] - py[u], bz = pz[i2] - pz[u];
+			double nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx;
+			ax = px[i1] - px[v]; ay = py[i1] - py[v]; az = pz[i1] - pz[v];
+			bx = px[i2] - px[v]; by = py[i2] - py[v]; bz = pz[i2] - pz[v];
+			double mx = ay*bz - az*by, my = az*bx - ax*bz, mz = ax*by - ay*bx;
+			if(nx*mx + ny*my + nz*mz <= 0 && (nx != 0 || ny != 0 || nz != 0)) return false;
+		}
+		return edge;
+	}
+
+	/**
+	 * @return the corner of triangle t that is vertex i, or -1
+	 */
+	private int corner(int t, int i)
+	{
+		for(int c=0; c<3; c++)
+			if(triangles[3*t+c] == i) return c;
+		return -1;
+	}
+
+	/**
+	 * Move vertex u onto vertex v. Triangles using both are removed.
+	 */
+	private void collapse(int u, int v)
+	{
+		int[] adj = adjacency[u];
+		for(int a=0; a<adjacencySize[u]; a++)
+		{
+			int t = adj[a];
+			if(removed[t]) continue;
+			int c = corner(t, u);
+			if(c < 0) continue;
+			if(corner(t, v) >= 0)
+			{
+				removed[t] = true;
+				nTriangles--;
+			} else
+			{
+				triangles[3*t+c] = v;
+				addAdjacency(v, t);
+			}
+		}
+		adjacencySize[u] = 0;
+		adjacency[u] = null;
+
+		int pu = 10*positionOf[u], pv = 10*positionOf[v];
+		for(int k=0; k<10; k++) quadrics[pv+k] += quadrics[pu+k];
+		version[u]++;
+		version[v]++;
+
+		// The quadric of v changed, so the cost of all edges of v changed.
+		// Each neighbor is visited once, although two triangles share it.
+		compact(v);
+		adj = adjacency[v];
+		int stamp = ++collapses;
+		for(int a=0; a<adjacencySize[v]; a++)
+		{
+			int t = adj[a];
+			for(int c=0; c<3; c++)
+			{
+				int w = triangles[3*t+c];
+				if(w == v || visited[w] == stamp) continue;
+				visited[w] = stamp;
+				push(w, v);
+				push(v, w);
+			}
+		}
+	}
+
+	private void addAdjacency(int i, int t)
+	{
+		if(adjacencySize[i] == adjacency[i].length)
+			adjacency[i] = Arrays.copyOf(adjacency[i], Math.max(4, 2*adjacencySize[i]));
+		adjacency[i][adjacencySize[i]++] = t;
+	}
+
+	/**
+	 * Remove triangles from the list of vertex i that were removed, do not
+	 * use i anymore, or are listed twice.
+	 */
+	private void compact(int i)
+	{
+		int[] adj = adjacency[i];
+		int m = 0;
+		for(int a=0; a<adjacencySize[i]; a++)
+		{
+			int t = adj[a];
+			if(removed[t] || corner(t, i) < 0) continue;
+			boolean duplicate = false;
+			for(int b=0; b<m; b++) duplicate |= adj[b] == t;
+			if(!duplicate) adj[m++] = t;
+		}
+		adjacencySize[i] = m;
+	}
+
+	/**
+	 * @return the number of remaining triangles
+	 */
+	public int getNumberOfTriangles()
+	{
+		return nTriangles;
+	}
+
+	/**
+	 * @return the largest error of a collapse so far, i.e., the square root
+	 * 		   of its quadric error. This approximates the distance of the
+	 * 		   simplified mesh to the original one.
+	 */
+	public float getError()
+	{
+		return (float)Math.sqrt(error);
+	}
+
+	/**
+	 * Make vertex data with the remaining triangles. Only the vertices they
+	 * use are kept, in their original order. Elements are stored in arrays,
+	 * or in an interleaved buffer if all elements of the input are stored
+	 * in buffers. Then each element keeps its {@link VertexFormat}.
+	 */
+	public VertexData getVertexData()
+	{
+		int[] newIndex = new int[n];
+		Arrays.fill(newIndex, -1);
+		for(int t=0; t<removed.length; t++)
+		{
+			if(removed[t]) continue;
+			for(int c=0; c<3; c++) newIndex[triangles[3*t+c]] = 0;
+		}
+		int m = 0;
+		for(int i=0; i<n; i++)
+			if(newIndex[i] >= 0) newIndex[i] = m++;
+
+		List<VertexData.VertexElement> elements = vertexData.getElements();
+		VertexData simplified = new VertexData(m);
+		for(VertexData.VertexElement e : elements)
+		{
+			int k = e.getNumberOfComponents();
+			float[] data = new float[m*k];
+			for(int i=0; i<n; i++)
+			{
+				if(newIndex[i] < 0) continue;
+				for(int c=0; c<k; c++)
+					data[newIndex[i]*k+c] = e.get(i, c);
+			}
+			simplified.addElement(data, e.getSemantic(), k);
+		}
+
+		int[] indices = new int[3*nTriangles];
+		int j = 0;
+		for(int t=0; t<removed.length; t++)
+		{
+			if(removed[t]) continue;
+			for(int c=0; c<3; c++) indices[j++] = newIndex[triangles[3*t+c]];
+		}
+		simplified.addIndices(indices);
+
+		if(!elements.isEmpty() && vertexData.isInBuffers())
+		{
+			Map<VertexData.Semantic, VertexFormat> formats =
+					new EnumMap<VertexData.Semantic, VertexFormat>(VertexData.Semantic.class);
+			for(VertexData.VertexElement e : elements)
+				formats.put(e.getSemantic(), e.getFormat());
+			simplified.interleave(formats);
+		}
+		return simplified;
+	}
+}
@@ -0,0 +1,299 @@
+package jrtr;
+
+import java.util.Arrays;
+import javax.vecmath.Matrix4f;
+
+/**
+ * Partitions the triangles of a {@link VertexData} into meshlets, small
+ * clusters of at most {@link #MAX_VERTICES} vertices and
+ * {@link #MAX_TRIANGLES} triangles, so that renderers can cull whole
+ * clusters before doing any work per triangle.
+ * <p>
+ * Meshlets are consecutive ranges of the indices: triangles are added to
+ * the current meshlet in index order until one of the limits would be
+ * exceeded. Meshlets are therefore most compact if the triangle order is
+ * optimized first, see {@link MeshOptimizer}. Each meshlet stores a
+ * bounding sphere, which is tested against the view frustum, and a cone
+ * that bounds the normals of its triangles, which tells whether all
+ * triangles face away from the camera. See {@link Culler}.
+ * <p>
+ * The meshlets are stored with the vertex data, see
+ * {@link VertexData#getMeshlets}. They are discarded when new indices are
+ * set, and need to be built again if vertex positions change.
+ */
+public class Meshlets {
+
+	public static final int MAX_VERTICES = 64;
+	public static final int MAX_TRIANGLES = 124;
+
+	// Bounds of each meshlet: the center and radius of the bounding sphere,
+	// the axis of the normal cone and the cone cutoff
+	static final int CENTER_X = 0, CENTER_Y = 1, CENTER_Z = 2, RADIUS = 3;
+	static final int AXIS_X = 4, AXIS_Y = 5, AXIS_Z = 6, CUTOFF = 7;
+	static final int BOUNDS_SIZE = 8;
+
+	private int size;
+	private int[] firstIndex;
+	private float[] bounds;
+
+	private Meshlets(int capacity)
+	{
+		firstIndex = new int[capacity+1];
+		bounds = new float[capacity*BOUNDS_SIZE];
+	}
+
+	/**
+	 * Build the meshlets of the vertex data and store them with it.
+	 *
+	 * @return the meshlets, or null if the vertex data has no positions or
+	 * 		   no indices
+	 */
+	public static Meshlets build(VertexData vertexData)
+	{
+		IndexBuffer indexBuffer = vertexData.getIndexBuffer();
+		VertexData.VertexElement position = vertexData.getElement(VertexData.Semantic.POSITION);
+		if(indexBuffer == null || position == null) return null;
+		int[] indices = indexBuffer.toArray();
+		int nTriangles = indices.length / 3;
+
+		Meshlets meshlets = new Meshlets(nTriangles / MAX_TRIANGLES + 1);
+		// The meshlet that last used each vertex, plus one
+		int[] used = new int[vertexData.getNumberOfVertices()];
+		int vertices = 0, triangles = 0, first = 0;
+		for(int t=0; t<nTriangles; t++)
+		{
+			int i0 = indices[3*t], i1 = indices[3*t+1], i2 = indices[3*t+2];
+			int m = meshlets.size + 1;
+			int added = newVertices(i0, i1, i2, used, m);
+			if(triangles == MAX_TRIANGLES || vertices + added > MAX_VERTICES)
+			{
+				meshlets.add(first, 3*t, indices, position);
+				first = 3*t;
+				vertices = 0;
+				triangles = 0;
+				m++;
+				added = newVertices(i0, i1, i2, used, m);
+			}
+			used[i0] = used[i1] = used[i2] = m;
+			vertices += added;
+			triangles++;
+		}
+		if(triangles > 0)
+			meshlets.add(first, 3*nTriangles, indices, position);
+		vertexData.setMeshlets(meshlets);
+		return meshlets;
+	}
+
+	/**
+	 * @return the number of distinct vertices of a triangle that are not
+	 * 		   used by meshlet m-1 yet
+	 */
+	private static int newVertices(int i0, int i1, int i2, int[] used, int m)
+	{
+		int n = 0;
+		if(used[i0] != m) n++;
+		if(used[i1] != m && i1 != i0) n++;
+		if(used[i2] != m && i2 != i0 && i2 != i1) n++;
+		return n;
+	}
+
+	/**
+	 * Add the meshlet with the indices first to end-1, and compute its
+	 * bounds.
+	 */
+	private void add(int first, int end, int[] indices, VertexData.VertexElement position)
+	{
+		if(size+1 == firstIndex.length)
+		{
+			firstIndex = Arrays.copyOf(firstIndex, 2*firstIndex.length);
+			bounds = Arrays.copyOf(bounds, (firstIndex.length-1)*BOUNDS_SIZE);
+		}
+		firstIndex[size] = first;
+		firstIndex[size+1] = end;
+		int b = size*BOUNDS_SIZE;
+		size++;
+
+		// The bounding sphere is centered in the bounding box
+		float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for(int j=first; j<end; j++)
+		{
+			int i = indices[j];
+			float x = x(position, i), y = y(position, i), z = z(position, i);
+			minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+			minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+		}
+		float cx = .5f*(minX + maxX), cy = .5f*(minY + maxY), cz = .5f*(minZ + maxZ);
+		float r2 = 0;
+		for(int j=first; j<end; j++)
+		{
+			int i = indices[j];
+			float dx = x(position, i) - cx, dy = y(position, i) - cy, dz = z(position, i) - cz;
+			r2 = Math.max(r2, dx*dx + dy*dy + dz*dz);
+		}
+		bounds[b+CENTER_X] = cx; bounds[b+CENTER_Y] = cy; bounds[b+CENTER_Z] = cz;
+		bounds[b+RADIUS] = (float)Math.sqrt(r2);
+
+		// The cone axis is the average of the unit triangle normals. The
+		// cutoff is the sine of the largest angle between a normal and the
+		// axis. Cones wider than about 84 degrees are useless for culling.
+		float[] normals = new float[end - first];
+		float ax = 0, ay = 0, az = 0;
+		for(int j=first; j<end; j+=3)
+		{
+			int i0 = indices[j], i1 = indices[j+1], i2 = indices[j+2];
+			float ux = x(position, i1) - x(position, i0), uy = y(position, i1) - y(position, i0);
+			float uz = z(position, i1) - z(position, i0);
+			float vx = x(position, i2) - x(position, i0), vy = y(position, i2) - y(position, i0);
+			float vz = z(position, i2) - z(position, i0);
+			float nx = uy*vz - uz*vy, ny = uz*vx - ux*vz, nz = ux*vy - uy*vx;
+			float l = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if(l > 0)
+			{
+				nx /= l; ny /= l; nz /= l;
+			}
+			normals[j-first] = nx; normals[j-first+1] = ny; normals[j-first+2] = nz;
+			ax += nx; ay += ny; az += nz;
+		}
+		float l = (float)Math.sqrt(ax*ax + ay*ay + az*az);
+		float cutoff = 1;
+		if(l > 0)
+		{
+			ax /= l; ay /= l; az /= l;
+			float minDot = 1;
+			for(int k=0; k<normals.length; k+=3)
+			{
+				// Degenerate triangles cannot be seen, so they do not count
+				float nx = normals[k], ny = normals[k+1], nz = normals[k+2];
+				if(nx != 0 || ny != 0 || nz != 0)
+					minDot = Math.min(minDot, nx*ax + ny*ay + nz*az);
+			}
+			if(minDot > .1f)
+				cutoff = (float)Math.sqrt(1 - minDot*minDot);
+		}
+		bounds[b+AXIS_X] = ax; bounds[b+AXIS_Y] = ay; bounds[b+AXIS_Z] = az;
+		bounds[b+CUTOFF] = cutoff;
+	}
+
+	private static float x(VertexData.VertexElement position, int i)
+	{
+		return position.get(i, 0);
+	}
+
+	private static float y(VertexData.VertexElement position, int i)
+	{
+		return position.get(i, 1);
+	}
+
+	private static float z(VertexData.VertexElement position, int i)
+	{
+		return position.getNumberOfComponents() > 2 ? position.get(i, 2) : 0.f;
+	}
+
+	/**
+	 * @return the number of meshlets
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the position of the first index of meshlet k in the indices
+	 */
+	public int getFirstIndex(int k)
+	{
+		return firstIndex[k];
+	}
+
+	/**
+	 * @return the number of indices of meshlet k, i.e., three times the
+	 * 		   number of triangles
+	 */
+	public int getNumberOfIndices(int k)
+	{
+		return firstIndex[k+1] - firstIndex[k];
+	}
+
+	/**
+	 * Decides which meshlets are visible for one draw call. The tests are
+	 * done in object space, so the bounds do not need to be transformed.
+	 */
+	public static class Culler {
+
+		// The six planes of the view frustum, each with a unit normal
+		private final float[] planes = new float[6*4];
+		private float eyeX, eyeY, eyeZ;
+		private boolean cullBackFaces;
+
+		/**
+		 * Prepare for a draw call.
+		 *
+		 * @param objectToClip the object-to-clip space transform
+		 * @param objectToCamera the object-to-camera space transform
+		 * @param backFaces whether meshlets whose triangles all face away
+		 * 		  from the camera are culled. Counter-clockwise triangles are
+		 * 		  front facing, as in OpenGL.
+		 */
+		public void setTransformation(Matrix4f objectToClip, Matrix4f objectToCamera, boolean backFaces)
+		{
+			// Planes of the clip space volume -w <= x,y,z <= w, transformed
+			// to object space
+			Matrix4f m = objectToClip;
+			setPlane(0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03);
+			setPlane(1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03);
+			setPlane(2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13);
+			setPlane(3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13);
+			setPlane(4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23);
+			setPlane(5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23);
+
+			// Mirroring transforms swap front and back faces in object space,
+			// so back face culling is skipped for them
+			Matrix4f c = objectToCamera;
+			float det = c.m00*(c.m11*c.m22 - c.m12*c.m21) - c.m01*(c.m10*c.m22 - c.m12*c.m20) +
+					c.m02*(c.m10*c.m21 - c.m11*c.m20);
+			cullBackFaces = backFaces && det > 0;
+			if(cullBackFaces)
+			{
+				// The camera is at the origin of camera space
+				Matrix4f inverse = new Matrix4f(objectToCamera);
+				inverse.invert();
+				eyeX = inverse.m03; eyeY = inverse.m13; eyeZ = inverse.m23;
+			}
+		}
+
+		private void setPlane(int p, float a, float b, float c, float d)
+		{
+			float l = (float)Math.sqrt(a*a + b*b + c*c);
+			if(l > 0) l = 1.f/l;
+			planes[4*p] = a*l; planes[4*p+1] = b*l; planes[4*p+2] = c*l; planes[4*p+3] = d*l;
+		}
+
+		/**
+		 * @return false if meshlet k is certainly outside the view frustum
+		 * 		   or, if back faces are culled, faces away from the camera
+		 */
+		public boolean isVisible(Meshlets meshlets, int k)
+		{
+			float[] b = meshlets.bounds;
+			int o = k*BOUNDS_SIZE;
+			float cx = b[o+CENTER_X], cy = b[o+CENTER_Y], cz = b[o+CENTER_Z], r = b[o+RADIUS];
+			for(int p=0; p<6*4; p+=4)
+			{
+				if(planes[p]*cx + planes[p+1]*cy + planes[p+2]*cz + planes[p+3] < -r)
+					return false;
+			}
+			if(cullBackFaces && b[o+CUTOFF] < 1)
+			{
+				// All triangles face away if the direction from the camera to
+				// any point of the sphere is within the cone of back directions
+				float dx = cx - eyeX, dy = cy - eyeY, dz = cz - eyeZ;
+				float d = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+				if(dx*b[o+AXIS_X] + dy*b[o+AXIS_Y] + dz*b[o+AXIS_Z] >= b[o+CUTOFF]*d + r)
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,796 @@
+package jrtr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads Wavefront OBJ files, with materials from MTL files, into
+ * {@link VertexData}.
+ * <p>
+ * The file is read in chunks of {@link #setChunkSize} bytes that end at a
+ * line break. The chunks are parsed in parallel on a
+ * <code>ForkJoinPool</code>, with a parser that works directly on the bytes
+ * of the file. While they are parsed, the calling thread reads the next
+ * chunks and appends the results of parsed chunks, in file order, to the
+ * mesh. At most two chunks per thread are in flight, so the memory used on
+ * the Java heap does not depend on the size of the file.
+ * <p>
+ * OBJ faces index positions, texture coordinates and normals separately.
+ * Each distinct combination of the three becomes one vertex of the vertex
+ * data; combinations are found with a hash table with open addressing. The
+ * mesh is built in direct buffers, outside of the Java heap, and the
+ * elements of the resulting vertex data are interleaved in one buffer.
+ * Polygons are triangulated as fans. Lines, points, groups and smoothing
+ * groups are ignored.
+ */
+public class ObjReader {
+
+	// Marks missing texture coordinate and normal indices
+	private static final int MISSING = Integer.MIN_VALUE;
+	// Marks indices that are relative to the start of a chunk. Relative
+	// indices are stored in the lower 30 bits, in two's complement.
+	private static final int RELATIVE = 1 << 30;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private int chunkSize = 1 << 22;
+
+	/**
+	 * Set the thread pool that parses the chunks. By default, the common
+	 * <code>ForkJoinPool</code> is used.
+	 */
+	public void setThreadPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the number of bytes that are parsed as one task. The default is
+	 * 4MB.
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = Math.max(chunkSize, 1 << 10);
+	}
+
+	/**
+	 * Read an OBJ file into one vertex data, ignoring its materials.
+	 *
+	 * @return the vertex data with positions, and texture coordinates and
+	 * 		   normals if the faces use them
+	 * @throws IOException if the file cannot be read or a face uses a
+	 * 		   vertex that does not exist
+	 */
+	public VertexData read(String fileName) throws IOException
+	{
+		Mesh mesh = parse(fileName, false);
+		return mesh.makeVertexData(mesh.groups.values().iterator().next());
+	}
+
+	/**
+	 * Read an OBJ file into one shape per material. The shapes share their
+	 * vertex buffer. The textures (<code>map_Kd</code>) of the materials
+	 * defined in the MTL files of the OBJ file are loaded with the render
+	 * context; other material properties are ignored.
+	 *
+	 * @throws IOException if the OBJ file, an MTL file or a texture cannot
+	 * 		   be read
+	 */
+	public List<Shape> readShapes(String fileName, RenderContext renderContext) throws IOException
+	{
+		Mesh mesh = parse(fileName, true);
+
+		File directory = new File(fileName).getAbsoluteFile().getParentFile();
+		Map<String, Material> materials = new HashMap<String, Material>();
+		for(String library : mesh.libraries)
+			readMaterials(new File(directory, library), renderContext, materials);
+
+		List<Shape> shapes = new ArrayList<Shape>();
+		for(Map.Entry<String, IntArray> group : mesh.groups.entrySet())
+		{
+			if(group.getValue().size == 0) continue;
+			Shape shape = new Shape(mesh.makeVertexData(group.getValue()));
+			Material material = materials.get(group.getKey());
+			if(material != null) shape.setMaterial(material);
+			shapes.add(shape);
+		}
+		return shapes;
+	}
+
+	/**
+	 * Read the materials of an MTL file. MTL files are small, so they are
+	 * read line by line.
+	 */
+	private static void readMaterials(File file, RenderContext renderContext, Map<String, Material> materials)
+			throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			Material material = null;
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.startsWith("newmtl "))
+				{
+					material = new Material();
+					materials.put(line.substring(7).trim(), material);
+				} else if(line.startsWith("map_Kd ") && material != null)
+				{
+					// Options such as -s or -o are not supported; the file
+					// name is the last token
+					String name = line.substring(line.lastIndexOf(' ') + 1);
+					Texture texture = renderContext.makeTexture();
+					texture.load(new File(file.getParentFile(), name).getPath());
+					material.setTexture(texture);
+				}
+			}
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parse the file with the bounded pipeline described above.
+	 *
+	 * @param materials whether faces are grouped by material
+	 */
+	private Mesh parse(String fileName, boolean materials) throws IOException
+	{
+		Mesh mesh = new Mesh(materials);
+		int maxInFlight = 2*Math.max(pool.getParallelism(), 1);
+		ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			byte[] carry = new byte[0];
+			int carryLength = 0;
+			boolean eof = false;
+			while(!eof)
+			{
+				byte[] bytes = new byte[carryLength + chunkSize];
+				System.arraycopy(carry, 0, bytes, 0, carryLength);
+				ByteBuffer target = ByteBuffer.wrap(bytes, carryLength, chunkSize);
+				while(target.hasRemaining())
+				{
+					if(channel.read(target) < 0)
+					{
+						eof = true;
+						break;
+					}
+				}
+				int length = target.position();
+
+				// Parse up to the last line break, and keep the rest of the
+				// last line for the next chunk
+				int end = length;
+				if(!eof)
+				{
+					while(end > 0 && bytes[end-1] != '\n') end--;
+				}
+				carry = bytes;
+				carryLength = length - end;
+				if(end > 0)
+				{
+					carry = new byte[carryLength];
+					System.arraycopy(bytes, end, carry, 0, carryLength);
+					final byte[] chunk = bytes;
+					final int chunkEnd = end;
+					inFlight.add(pool.submit(new Callable<Chunk>() {
+						public Chunk call()
+						{
+							return new Chunk(chunk, chunkEnd);
+						}
+					}));
+				}
+				// Otherwise the line does not fit into the chunk, and the next
+				// chunk is read in addition to it
+
+				while(inFlight.size() >= maxInFlight)
+					mesh.append(take(inFlight));
+			}
+			while(!inFlight.isEmpty())
+				mesh.append(take(inFlight));
+		} finally
+		{
+			for(Future<Chunk> future : inFlight)
+				future.cancel(false);
+			file.close();
+		}
+		mesh.validate(fileName);
+		return mesh;
+	}
+
+	private static Chunk take(ArrayDeque<Future<Chunk>> inFlight) throws IOException
+	{
+		try
+		{
+			return inFlight.poll().get();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading", e);
+		} catch(ExecutionException e)
+		{
+			throw new IOException("Could not parse OBJ file", e.getCause());
+		}
+	}
+
+	/**
+	 * The result of parsing one chunk. Faces are stored as triangles with
+	 * three <code>int</code>s per corner: the 0-based indices of the position,
+	 * texture coordinates and normal, or {@link #MISSING}. Negative OBJ
+	 * indices refer to the elements defined last; they are stored relative to
+	 * the start of the chunk, marked with {@link #RELATIVE}, and resolved once
+	 * the number of elements in the preceding chunks is known.
+	 */
+	private static class Chunk {
+
+		private final byte[] b;
+		private final int end;
+		private int p;
+
+		FloatList positions = new FloatList(), texCoords = new FloatList(), normals = new FloatList();
+		IntList corners = new IntList();
+		// Material switches: the index of the first corner, and the name
+		List<Integer> materialStarts = new ArrayList<Integer>();
+		List<String> materialNames = new ArrayList<String>();
+		List<String> libraries = new ArrayList<String>();
+
+		private final int[] polygon = new int[3*3];
+
+		Chunk(byte[] b, int end)
+		{
+			this.b = b;
+			this.end = end;
+			while(p < end)
+			{
+				parseLine();
+				// Skip the rest of the line
+				while(p < end && b[p] != '\n') p++;
+				p++;
+			}
+		}
+
+		private void parseLine()
+		{
+			skipSpaces();
+			if(p >= end) return;
+			byte c = b[p];
+			byte d = p+1 < end ? b[p+1] : 0;
+			if(c == 'v' && isSpace(d))
+			{
+				p++;
+				positions.add(parseFloat());
+				positions.add(parseFloat());
+				positions.add(parseFloat());
+			} else if(c == 'v' && d == 't' && p+2 < end && isSpace(b[p+2]))
+			{
+				p += 2;
+				texCoords.add(parseFloat());
+				texCoords.add(parseFloat());
+			} else if(c == 'v' && d == 'n' && p+2 < end && isSpace(b[p+2]))
+			{
+				p += 2;
+				normals.add(parseFloat());
+				normals.add(parseFloat());
+				normals.add(parseFloat());
+			} else if(c == 'f' && isSpace(d))
+			{
+				p++;
+				parseFace();
+			} else if(keyword("usemtl"))
+			{
+				materialStarts.add(corners.size / 3);
+				materialNames.add(restOfLine());
+			} else if(keyword("mtllib"))
+			{
+				libraries.add(restOfLine());
+			}
+		}
+
+		/**
+		 * Parse the corners of a face and add them as a triangle fan.
+		 */
+		private void parseFace()
+		{
+			int count = 0;
+			while(true)
+			{
+				skipSpaces();
+				if(p >= end || !isNumber(b[p])) break;
+				int o = count < 3 ? 3*count : 6;
+				polygon[o] = reference(parseInt(), positions.size / 3);
+				polygon[o+1] = MISSING;
+				polygon[o+2] = MISSING;
+				if(p < end && b[p] == '/')
+				{
+					p++;
+					if(p < end && b[p] != '/')
+						polygon[o+1] = reference(parseInt(), texCoords.size / 2);
+					if(p < end && b[p] == '/')
+					{
+						p++;
+						polygon[o+2] = reference(parseInt(), normals.size / 3);
+					}
+				}
+				count++;
+				if(count >= 3)
+				{
+					// Emit the triangle (first, previous, current), then the
+					// current corner becomes the previous one
+					corners.add(polygon, 0, 3);
+					corners.add(polygon, 3, 3);
+					corners.add(polygon, 6, 3);
+					System.arraycopy(polygon, 6, polygon, 3, 3);
+				}
+			}
+		}
+
+		/**
+		 * Convert a 1-based OBJ index into a 0-based one. Negative indices
+		 * are relative to the number of elements defined so far; they are
+		 * converted to indices relative to the start of the chunk.
+		 *
+		 * @return the index, with {@link #RELATIVE} set if it is relative to
+		 * 		   the chunk
+		 */
+		private int reference(int index, int count)
+		{
+			if(index > 0) return index - 1;
+			if(index == 0) return MISSING;
+			return RELATIVE | ((count + index) & (RELATIVE - 1));
+		}
+
+		private boolean keyword(String word)
+		{
+			int n = word.length();
+			if(p + n >= end || !isSpace(b[p+n])) return false;
+			for(int i=0; i<n; i++)
+				if(b[p+i] != word.charAt(i)) return false;
+			p += n;
+			return true;
+		}
+
+		private String restOfLine()
+		{
+			skipSpaces();
+			int start = p, last = p;
+			while(p < end && b[p] != '\n')
+			{
+				if(!isSpace(b[p])) last = p+1;
+				p++;
+			}
+			return new String(b, start, last - start, StandardCharsets.UTF_8);
+		}
+
+		private void skipSpaces()
+		{
+			while(p < end && isSpace(b[p])) p++;
+		}
+
+		private static boolean isSpace(byte c)
+		{
+			return c == ' ' || c == '\t' || c == '\r';
+		}
+
+		private static boolean isNumber(byte c)
+		{
+			return (c >= '0' && c <= '9') || c == '-' || c == '+';
+		}
+
+		private int parseInt()
+		{
+			boolean negative = false;
+			if(p < end && (b[p] == '-' || b[p] == '+')) negative = b[p++] == '-';
+			int v = 0;
+			while(p < end && b[p] >= '0' && b[p] <= '9')
+				v = 10*v + (b[p++] - '0');
+			return negative ? -v : v;
+		}
+
+		/**
+		 * Parse a decimal number. Up to 18 significant digits are collected
+		 * in a <code>long</code> and scaled by a power of ten, which is exact
+		 * enough for floats. Missing numbers are read as 0.
+		 */
+		private float parseFloat()
+		{
+			skipSpaces();
+			boolean negative = false;
+			if(p < end && (b[p] == '-' || b[p] == '+')) negative = b[p++] == '-';
+			long mantissa = 0;
+			int digits = 0, exponent = 0;
+			while(p < end && b[p] >= '0' && b[p] <= '9')
+			{
+				if(digits < 18)
+				{
+					mantissa = 10*mantissa + (b[p] - '0');
+					if(mantissa != 0) digits++;
+				} else
+				{
+					exponent++;
+				}
+				p++;
+			}
+			if(p < end && b[p] == '.')
+			{
+				p++;
+				while(p < end && b[p] >= '0' && b[p] <= '9')
+				{
+					if(digits < 18)
+					{
+						mantissa = 10*mantissa + (b[p] - '0');
+						if(mantissa != 0) digits++;
+						exponent--;
+					}
+					p++;
+				}
+			}
+			if(p < end && (b[p] == 'e' || b[p] == 'E'))
+			{
+				p++;
+				exponent += parseInt();
+			}
+			double v = mantissa;
+			if(exponent < 0)
+				v /= exponent >= -22 ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+			else if(exponent > 0)
+				v *= exponent <= 22 ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+			return (float)(negative ? -v : v);
+		}
+	}
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for(int i=1; i<POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = 10*POWERS_OF_TEN[i-1];
+	}
+
+	/**
+	 * The mesh that the chunks are appended to.
+	 */
+	private static class Mesh {
+
+		private final boolean materials;
+
+		FloatArray positions = new FloatArray(), texCoords = new FloatArray(), normals = new FloatArray();
+		// The position, texture coordinate and normal index of each vertex
+		IntArray vertices = new IntArray();
+		// The indices of each material, in the order in which the materials
+		// are first used
+		Map<String, IntArray> groups = new LinkedHashMap<String, IntArray>();
+		List<String> libraries = new ArrayList<String>();
+		boolean hasTexCoords, hasNormals;
+
+		// Open addressing with linear probing, see VertexWelder. Slots store
+		// a vertex index plus one, zero marks an empty slot.
+		private IntArray table;
+		private int mask;
+		private IntArray current;
+
+		Mesh(boolean materials)
+		{
+			this.materials = materials;
+			resize(1 << 12);
+			current = new IntArray();
+			groups.put("", current);
+		}
+
+		void append(Chunk chunk)
+		{
+			int positionBase = positions.size / 3;
+			int texCoordBase = texCoords.size / 2;
+			int normalBase = normals.size / 3;
+			positions.add(chunk.positions);
+			texCoords.add(chunk.texCoords);
+			normals.add(chunk.normals);
+			libraries.addAll(chunk.libraries);
+
+			int[] c = chunk.corners.data;
+			int nCorners = chunk.corners.size / 3;
+			int nextMaterial = 0;
+			for(int j=0; j<nCorners; j++)
+			{
+				while(nextMaterial < chunk.materialStarts.size() && chunk.materialStarts.get(nextMaterial) == j)
+					useMaterial(chunk.materialNames.get(nextMaterial++));
+				int v = resolve(c[3*j], positionBase);
+				int vt = resolve(c[3*j+1], texCoordBase);
+				int vn = resolve(c[3*j+2], normalBase);
+				hasTexCoords |= vt != MISSING;
+				hasNormals |= vn != MISSING;
+				current.add(vertex(v, vt, vn));
+			}
+			while(nextMaterial < chunk.materialNames.size())
+				useMaterial(chunk.materialNames.get(nextMaterial++));
+		}
+
+		private static int resolve(int index, int base)
+		{
+			if(index == MISSING || (index & RELATIVE) == 0) return index;
+			// Sign extend the lower 30 bits
+			return base + ((index << 2) >> 2);
+		}
+
+		private void useMaterial(String name)
+		{
+			if(!materials) return;
+			current = groups.get(name);
+			if(current == null)
+			{
+				current = new IntArray();
+				groups.put(name, current);
+			}
+		}
+
+		/**
+		 * @return the index of the vertex with the given indices, which is
+		 * 		   added if it does not exist yet
+		 */
+		private int vertex(int v, int vt, int vn)
+		{
+			int slot = hash(v, vt, vn) & mask;
+			while(true)
+			{
+				int i = table.get(slot) - 1;
+				if(i < 0) break;
+				if(vertices.get(3*i) == v && vertices.get(3*i+1) == vt && vertices.get(3*i+2) == vn)
+					return i;
+				slot = (slot + 1) & mask;
+			}
+			int i = vertices.size / 3;
+			vertices.add(v);
+			vertices.add(vt);
+			vertices.add(vn);
+			table.set(slot, i + 1);
+			if(2*(i+1) > mask) resize(2*(mask+1));
+			return i;
+		}
+
+		private static int hash(int v, int vt, int vn)
+		{
+			long h = ((v * 0x9E3779B97F4A7C15L + vt) * 0x9E3779B97F4A7C15L + vn) * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		/**
+		 * Rebuild the hash table with the given capacity.
+		 */
+		private void resize(int capacity)
+		{
+			table = new IntArray(capacity);
+			mask = capacity - 1;
+			int n = vertices.size / 3;
+			for(int i=0; i<n; i++)
+			{
+				int v = vertices.get(3*i), vt = vertices.get(3*i+1), vn = vertices.get(3*i+2);
+				int slot = hash(v, vt, vn) & mask;
+				while(table.get(slot) != 0) slot = (slot + 1) & mask;
+				table.set(slot, i + 1);
+			}
+		}
+
+		/**
+		 * Check that all vertices refer to existing elements. This is done
+		 * after the whole file was read, since faces may be defined before
+		 * the elements they use.
+		 */
+		void validate(String fileName) throws IOException
+		{
+			table = null;
+			int n = vertices.size / 3;
+			int nPositions = positions.size / 3, nTexCoords = texCoords.size / 2, nNormals = normals.size / 3;
+			for(int i=0; i<n; i++)
+			{
+				int v = vertices.get(3*i), vt = vertices.get(3*i+1), vn = vertices.get(3*i+2);
+				if(v < 0 || v >= nPositions || (vt != MISSING && (vt < 0 || vt >= nTexCoords)) ||
+						(vn != MISSING && (vn < 0 || vn >= nNormals)))
+					throw new IOException(fileName + " refers to a vertex that does not exist");
+			}
+		}
+
+		private ByteBuffer interleaved;
+		private int stride;
+
+		/**
+		 * Make vertex data with the given indices. The vertices are
+		 * interleaved once and shared by all vertex data.
+		 */
+		VertexData makeVertexData(IntArray indices)
+		{
+			int n = vertices.size / 3;
+			if(interleaved == null)
+			{
+				stride = 4*(3 + (hasTexCoords ? 2 : 0) + (hasNormals ? 3 : 0));
+				interleaved = VertexData.allocateBuffer(Math.max(n*stride, 1));
+				for(int i=0; i<n; i++)
+				{
+					int o = i*stride;
+					int v = vertices.get(3*i), vt = vertices.get(3*i+1), vn = vertices.get(3*i+2);
+					for(int c=0; c<3; c++, o+=4)
+						interleaved.putFloat(o, positions.get(3*v+c));
+					if(hasTexCoords)
+					{
+						for(int c=0; c<2; c++, o+=4)
+							interleaved.putFloat(o, vt != MISSING ? texCoords.get(2*vt+c) : 0);
+					}
+					if(hasNormals)
+					{
+						for(int c=0; c<3; c++, o+=4)
+							interleaved.putFloat(o, vn != MISSING ? normals.get(3*vn+c) : 0);
+					}
+				}
+				// The elements are no longer needed once they are interleaved
+				positions = texCoords = normals = null;
+			}
+
+			VertexData vertexData = new VertexData(n);
+			vertexData.addElement(interleaved, stride, 0, VertexData.Semantic.POSITION, 3);
+			if(hasTexCoords)
+				vertexData.addElement(interleaved, stride, 12, VertexData.Semantic.TEXCOORD, 2);
+			if(hasNormals)
+				vertexData.addElement(interleaved, stride, hasTexCoords ? 20 : 12, VertexData.Semantic.NORMAL, 3);
+
+			IndexBuffer.Type type = IndexBuffer.Type.forVertexCount(n);
+			if(type == IndexBuffer.Type.UNSIGNED_INT)
+			{
+				vertexData.addIndices(new IndexBuffer(type, indices.buffer, indices.size));
+			} else
+			{
+				IndexBuffer compact = new IndexBuffer(type, indices.size);
+				for(int j=0; j<indices.size; j++)
+					compact.set(j, indices.get(j));
+				vertexData.addIndices(compact);
+			}
+			return vertexData;
+		}
+	}
+
+	/**
+	 * A growing array of floats on the Java heap, used for the results of
+	 * one chunk.
+	 */
+	private static class FloatList {
+
+		float[] data = new float[1 << 10];
+		int size;
+
+		void add(float f)
+		{
+			if(size == data.length)
+			{
+				float[] grown = new float[2*size];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			data[size++] = f;
+		}
+	}
+
+	/**
+	 * A growing array of ints on the Java heap, used for the results of one
+	 * chunk.
+	 */
+	private static class IntList {
+
+		int[] data = new int[1 << 10];
+		int size;
+
+		void add(int[] values, int offset, int n)
+		{
+			if(size + n > data.length)
+			{
+				int[] grown = new int[Math.max(2*data.length, size + n)];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			System.arraycopy(values, offset, data, size, n);
+			size += n;
+		}
+	}
+
+	/**
+	 * A growing array of floats in a direct buffer, used for the mesh.
+	 */
+	private static class FloatArray {
+
+		ByteBuffer buffer = VertexData.allocateBuffer(1 << 12);
+		int size;
+
+		void add(FloatList list)
+		{
+			buffer = reserve(buffer, 4L*(size + list.size));
+			buffer.position(4*size);
+			buffer.asFloatBuffer().put(list.data, 0, list.size);
+			size += list.size;
+		}
+
+		float get(int i)
+		{
+			return buffer.getFloat(4*i);
+		}
+	}
+
+	/**
+	 * A growing array of ints in a direct buffer, used for the mesh.
+	 */
+	private static class IntArray {
+
+		ByteBuffer buffer;
+		int size;
+
+		IntArray()
+		{
+			buffer = VertexData.allocateBuffer(1 << 12);
+		}
+
+		/**
+		 * Make an array that holds n zeros.
+		 */
+		IntArray(int n)
+		{
+			buffer = VertexData.allocateBuffer(4*n);
+			size = n;
+		}
+
+		void add(int v)
+		{
+			if(4*size == buffer.capacity())
+				buffer = reserve(buffer, 4L*(size + 1));
+			buffer.putInt(4*size++, v);
+		}
+
+		int get(int i)
+		{
+			return buffer.getInt(4*i);
+		}
+
+		void set(int i, int v)
+		{
+			buffer.putInt(4*i, v);
+		}
+	}
+
+	/**
+	 * @return the buffer, or a copy with at least the given capacity that is
+	 * 		   twice as large
+	 */
+	private static ByteBuffer reserve(ByteBuffer buffer, long bytes)
+	{
+		if(bytes <= buffer.capacity()) return buffer;
+		long capacity = Math.max(bytes, 2L*buffer.capacity());
+		if(capacity > Integer.MAX_VALUE)
+		{
+			if(bytes > Integer.MAX_VALUE)
+				throw new IllegalStateException("OBJ file too large, buffers are limited to 2GB");
+			capacity = Integer.MAX_VALUE & ~7;
+		}
+		ByteBuffer grown = VertexData.allocateBuffer((int)capacity);
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		grown.put(source);
+		grown.clear();
+		return grown;
+	}
+}
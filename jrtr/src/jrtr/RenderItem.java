@@ -10,9 +10,20 @@ import javax.vecmath.*;
 public class RenderItem {
 
 	public RenderItem(Shape shape, Matrix4f t)
+	{
+		this(shape, t, shape.getVertexData());
+	}
+	
+	/**
+	 * Make a render item that draws the given vertex data instead of the
+	 * vertex data of the shape, for example a level of detail selected
+	 * by the scene manager.
+	 */
+	public RenderItem(Shape shape, Matrix4f t, VertexData vertexData)
 	{
 		this.shape = shape;
 		this.t = t;
+		this.vertexData = vertexData;
 	}
 	
 	public Shape getShape()
@@ -25,6 +36,15 @@ public class RenderItem {
 		return t;
 	}
 	
+	/**
+	 * @return the vertex data to draw
+	 */
+	public VertexData getVertexData()
+	{
+		return vertexData;
+	}
+	
 	private Shape shape;
 	private Matrix4f t;
+	private VertexData vertexData;
 }
@@ -0,0 +1,194 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import javax.vecmath.Matrix4f;
+
+/**
+ * Collects the {@link RenderItem}s of a frame and sorts them so that items
+ * with the same state are drawn one after the other, and nearby items
+ * before distant ones. A renderer then only needs to change its state when
+ * it actually differs from the previous item, and early depth testing
+ * rejects more hidden pixels.
+ * <p>
+ * Items are sorted by a 64 bit key that holds, from the most to the least
+ * significant bits, the shader, the texture and the material of the item,
+ * and its distance to the camera:
+ * <pre>
+ * bit 63      zero
+ * bits 62-54  shader
+ * bits 53-40  texture
+ * bits 39-24  material
+ * bits 23-0   depth
+ * </pre>
+ * Shaders, textures and materials are numbered in the order in which they
+ * are first seen in a frame, with 0 for none. If there are more than fit
+ * into their bits, numbers are shared, which only makes the sorting less
+ * effective. The depth is the distance of the origin of the object from the
+ * camera, reduced to the 24 most significant bits of the float.
+ * <p>
+ * After sorting by key, items with the same material and the same
+ * {@link VertexData} are moved next to each other, in the order of their
+ * nearest item, so that a renderer can draw them together, see
+ * {@link #getBatchSize}.
+ */
+public class RenderQueue {
+
+	static final int SHADER_SHIFT = 54, TEXTURE_SHIFT = 40, MATERIAL_SHIFT = 24;
+	static final long SHADER_MASK = (1 << 9) - 1, TEXTURE_MASK = (1 << 14) - 1;
+	static final long MATERIAL_MASK = (1 << 16) - 1, DEPTH_MASK = (1 << 24) - 1;
+
+	private final ArrayList<RenderItem> items = new ArrayList<RenderItem>();
+	private long[] keys = new long[16];
+	private Integer[] order = new Integer[0];
+	private int[] ranks = new int[0];
+	private final IdentityHashMap<VertexData, Integer> groups = new IdentityHashMap<VertexData, Integer>();
+	private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+	private final int[] nextId = new int[3];
+
+	private final Comparator<Integer> byKey = new Comparator<Integer>()
+	{
+		public int compare(Integer a, Integer b)
+		{
+			long ka = keys[a], kb = keys[b];
+			return ka < kb ? -1 : (ka == kb ? 0 : 1);
+		}
+	};
+	
+	private final Comparator<Integer> byRank = new Comparator<Integer>()
+	{
+		public int compare(Integer a, Integer b)
+		{
+			return ranks[a] - ranks[b];
+		}
+	};
+
+	/**
+	 * Remove all items, before collecting the items of a new frame.
+	 */
+	public void clear()
+	{
+		items.clear();
+		ids.clear();
+		Arrays.fill(nextId, 0);
+	}
+
+	/**
+	 * Add an item.
+	 *
+	 * @param camera the camera matrix, to compute the distance of the item
+	 */
+	public void add(RenderItem item, Matrix4f camera)
+	{
+		Material m = item.getShape().getMaterial();
+		Shader shader = m != null ? m.getShader() : null;
+		Texture texture = m != null ? m.getTexture() : null;
+
+		// The z coordinate of the origin of the object in camera space. The
+		// camera looks along the negative z axis.
+		Matrix4f t = item.getT();
+		float z = camera.m20*t.m03 + camera.m21*t.m13 + camera.m22*t.m23 + camera.m23;
+		float depth = Math.max(-z, 0.f);
+
+		long key = (id(shader, 0) & SHADER_MASK) << SHADER_SHIFT |
+				(id(texture, 1) & TEXTURE_MASK) << TEXTURE_SHIFT |
+				(id(m, 2) & MATERIAL_MASK) << MATERIAL_SHIFT |
+				(Float.floatToIntBits(depth) >>> 7) & DEPTH_MASK;
+
+		if(items.size() == keys.length)
+			keys = Arrays.copyOf(keys, 2*keys.length);
+		keys[items.size()] = key;
+		items.add(item);
+	}
+
+	/**
+	 * @return the number of the object among those of its kind, starting
+	 * 		   at 1, or 0 for null
+	 */
+	private long id(Object o, int kind)
+	{
+		if(o == null) return 0;
+		Integer id = ids.get(o);
+		if(id == null)
+		{
+			id = ++nextId[kind];
+			ids.put(o, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Sort the items by their keys, and group items with the same material
+	 * and vertex data.
+	 */
+	public void sort()
+	{
+		int n = items.size();
+		if(order.length < n)
+		{
+			order = new Integer[keys.length];
+			ranks = new int[keys.length];
+		}
+		for(int i=0; i<n; i++)
+			order[i] = i;
+		Arrays.sort(order, 0, n, byKey);
+		
+		// Each item gets the position of the first item of its group as its
+		// rank. The sort is stable, so groups keep the order of their first
+		// items, and the items of a group stay in the order of their keys.
+		for(int i=0; i<n; )
+		{
+			Material m = items.get(order[i]).getShape().getMaterial();
+			groups.clear();
+			for(; i<n && items.get(order[i]).getShape().getMaterial() == m; i++)
+			{
+				VertexData vertexData = items.get(order[i]).getVertexData();
+				Integer first = groups.get(vertexData);
+				if(first == null)
+				{
+					first = i;
+					groups.put(vertexData, first);
+				}
+				ranks[order[i]] = first;
+			}
+		}
+		Arrays.sort(order, 0, n, byRank);
+	}
+
+	public int size()
+	{
+		return items.size();
+	}
+
+	/**
+	 * @return item i in the sorted order
+	 */
+	public RenderItem get(int i)
+	{
+		return items.get(order[i]);
+	}
+
+	/**
+	 * @return the number of items, starting at item i in the sorted order,
+	 * 		   that have the same material and vertex data
+	 */
+	public int getBatchSize(int i)
+	{
+		RenderItem first = get(i);
+		int j = i+1;
+		while(j < items.size() && get(j).getVertexData() == first.getVertexData() &&
+				get(j).getShape().getMaterial() == first.getShape().getMaterial())
+			j++;
+		return j - i;
+	}
+	
+	/**
+	 * @return the key of item i in the sorted order
+	 */
+	public long getKey(int i)
+	{
+		return keys[order[i]];
+	}
+}
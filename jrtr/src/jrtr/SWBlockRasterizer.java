@@ -0,0 +1,29 @@
+package jrtr;
+
+/**
+ * The inner loop of the software rasterizer. Implementations draw the 
+ * pixels of a single triangle within a small rectangle, usually one block of
+ * {@link SWFrameBuffer#BLOCK_SIZE}x{@link SWFrameBuffer#BLOCK_SIZE} pixels.
+ * The {@link SWTileRasterizer} takes care of binning, tiling and 
+ * hierarchical depth rejection, and calls this for each block that may be 
+ * visible.
+ * <p>
+ * Implementations need to be thread safe, since tiles are rasterized in 
+ * parallel. See {@link SWRenderContext#setRasterizerStrategy} to select 
+ * an implementation.
+ */
+public interface SWBlockRasterizer {
+
+	/**
+	 * Draw the part of a triangle that lies in the rectangle
+	 * [x0,x1) x [y0,y1). Pixels are sampled at their centers and depth
+	 * tested against the depth buffer.
+	 * 
+	 * @param s the set up triangles, see {@link SWTileRasterizer}
+	 * @param t the offset of the triangle in s
+	 * @param texture the texture of the triangle, or null
+	 * @return true if any pixel was written
+	 */
+	boolean rasterizeBlock(float[] s, int t, SWTexture texture, int x0, int y0, int x1, int y1, 
+			SWFrameBuffer frameBuffer);
+}
@@ -0,0 +1,210 @@
+package jrtr;
+
+/**
+ * Clips triangles in homogeneous clip space for the software renderer.
+ * <p>
+ * Each vertex gets an outcode (see {@link #outcode}) when it is transformed. 
+ * Triangles are classified in chunks from the outcodes in the vertex cache,
+ * see {@link #classify}. A triangle whose vertices are all outside the same
+ * plane of the view frustum is rejected, and a triangle whose vertices are all in front of the
+ * near plane and inside the guard band is accepted without clipping. Since
+ * the rasterizer only visits pixels in the viewport, triangles that extend
+ * past the viewport but not past the guard band are scissored during 
+ * rasterization instead of being clipped. Only the remaining triangles are 
+ * clipped, against the near plane and the guard band planes they cross, 
+ * and the resulting polygon is split into a triangle fan.
+ */
+public class SWClipper {
+
+	/**
+	 * Size of the guard band in normalized device coordinates. Vertices with
+	 * |x| or |y| up to this value are not clipped. This keeps screen space 
+	 * coordinates small enough for accurate edge functions.
+	 */
+	public static final float GUARD_BAND = 4.f;
+
+	/**
+	 * Smallest w of a vertex that is not clipped.
+	 */
+	static final float MIN_W = 1e-5f;
+
+	/**
+	 * Outcode bits. The first group marks vertices outside the view frustum,
+	 * the second group vertices that need clipping.
+	 */
+	static final int LEFT = 1, RIGHT = 2, BOTTOM = 4, TOP = 8, NEAR = 16, FAR = 32;
+	static final int GUARD_LEFT = 64, GUARD_RIGHT = 128, GUARD_BOTTOM = 256, GUARD_TOP = 512;
+	static final int BEHIND = 1024;
+	static final int REJECT_MASK = LEFT | RIGHT | BOTTOM | TOP | NEAR | FAR | BEHIND;
+	static final int CLIP_MASK = NEAR | BEHIND | GUARD_LEFT | GUARD_RIGHT | GUARD_BOTTOM | GUARD_TOP;
+
+	// Clip space vertex layout while clipping
+	private static final int CX = 0, CY = 1, CZ = 2, CW = 3, CR = 4, CG = 5, CB = 6, CU = 7, CV = 8, SIZE = 9;
+
+	// Maximum polygon size: a triangle clipped by six planes
+	private static final int MAX_VERTICES = 9;
+
+	private float[] in, out;
+	private float[] triangle;
+
+	public SWClipper()
+	{
+		in = new float[MAX_VERTICES*SIZE];
+		out = new float[MAX_VERTICES*SIZE];
+		triangle = new float[3*SWTileRasterizer.VERTEX_SIZE];
+	}
+
+	/**
+	 * Compute the outcode of a clip space position.
+	 */
+	static int outcode(float x, float y, float z, float w)
+	{
+		int c = 0;
+		if(x < -w) c |= LEFT;
+		if(x > w) c |= RIGHT;
+		if(y < -w) c |= BOTTOM;
+		if(y > w) c |= TOP;
+		if(z < -w) c |= NEAR;
+		if(z > w) c |= FAR;
+		float g = GUARD_BAND*w;
+		if(x < -g) c |= GUARD_LEFT;
+		if(x > g) c |= GUARD_RIGHT;
+		if(y < -g) c |= GUARD_BOTTOM;
+		if(y > g) c |= GUARD_TOP;
+		if(!(w >= MIN_W)) c |= BEHIND;
+		return c;
+	}
+
+	/**
+	 * Marks a rejected triangle in the result of {@link #classify}.
+	 */
+	static final int REJECTED = -1;
+
+	/**
+	 * Classify a chunk of triangles by the outcodes of their vertices, in one
+	 * pass over the outcodes in the vertex cache. All vertices need to be
+	 * transformed.
+	 * 
+	 * @param indices the vertex indices of the triangles
+	 * @param count the number of indices
+	 * @param planes receives for each triangle {@link #REJECTED}, 0 if it is
+	 * 		  accepted without clipping, or the outcode bits of the planes it
+	 * 		  needs to be clipped against
+	 * @return the number of triangles that are not rejected
+	 */
+	static int classify(int[] outcodes, int[] indices, int count, int[] planes)
+	{
+		int visible = 0;
+		for(int j=0, k=0; j<count; j+=3, k++)
+		{
+			int c0 = outcodes[indices[j]], c1 = outcodes[indices[j+1]], c2 = outcodes[indices[j+2]];
+			if((c0 & c1 & c2 & REJECT_MASK) != 0)
+			{
+				planes[k] = REJECTED;
+			} else
+			{
+				planes[k] = (c0 | c1 | c2) & CLIP_MASK;
+				visible++;
+			}
+		}
+		return visible;
+	}
+
+	/**
+	 * Clip the triangle (i0, i1, i2) of the vertex cache and pass the 
+	 * resulting triangles to the rasterizer.
+	 * 
+	 * @param planes the outcode bits of the planes to clip against
+	 */
+	public void clip(SWVertexCache cache, int i0, int i1, int i2, int planes, 
+			int width, int height, SWTileRasterizer rasterizer)
+	{
+		load(cache, i0, 0);
+		load(cache, i1, 1);
+		load(cache, i2, 2);
+		int n = 3;
+
+		if((planes & BEHIND) != 0) n = clipPlane(n, 0, 0, 0, 1, -MIN_W);
+		if((planes & NEAR) != 0) n = clipPlane(n, 0, 0, 1, 1, 0);
+		if((planes & GUARD_LEFT) != 0) n = clipPlane(n, 1, 0, 0, GUARD_BAND, 0);
+		if((planes & GUARD_RIGHT) != 0) n = clipPlane(n, -1, 0, 0, GUARD_BAND, 0);
+		if((planes & GUARD_BOTTOM) != 0) n = clipPlane(n, 0, 1, 0, GUARD_BAND, 0);
+		if((planes & GUARD_TOP) != 0) n = clipPlane(n, 0, -1, 0, GUARD_BAND, 0);
+
+		// Triangulate the clipped polygon as a fan
+		final int v = SWTileRasterizer.VERTEX_SIZE;
+		for(int k=1; k+1<n; k++)
+		{
+			project(0, 0, width, height);
+			project(k, v, width, height);
+			project(k+1, 2*v, width, height);
+			rasterizer.addTriangle(triangle);
+		}
+	}
+
+	private void load(SWVertexCache cache, int i, int k)
+	{
+		int o = k*SIZE;
+		in[o+CX] = cache.clipX[i];
+		in[o+CY] = cache.clipY[i];
+		in[o+CZ] = cache.clipZ[i];
+		in[o+CW] = cache.clipW[i];
+		in[o+CR] = cache.red[i];
+		in[o+CG] = cache.green[i];
+		in[o+CB] = cache.blue[i];
+		in[o+CU] = cache.texU[i];
+		in[o+CV] = cache.texV[i];
+	}
+
+	/**
+	 * Clip the polygon against the half space a*x + b*y + c*z + d*w + e >= 0
+	 * (Sutherland-Hodgman). Vertex attributes are interpolated linearly in
+	 * clip space.
+	 * 
+	 * @return the number of vertices of the clipped polygon
+	 */
+	private int clipPlane(int n, float a, float b, float c, float d, float e)
+	{
+		int m = 0;
+		for(int k=0; k<n; k++)
+		{
+			int p = k*SIZE, q = ((k+1)%n)*SIZE;
+			float dp = a*in[p+CX] + b*in[p+CY] + c*in[p+CZ] + d*in[p+CW] + e;
+			float dq = a*in[q+CX] + b*in[q+CY] + c*in[q+CZ] + d*in[q+CW] + e;
+			if(dp >= 0)
+			{
+				System.arraycopy(in, p, out, m*SIZE, SIZE);
+				m++;
+			}
+			if((dp >= 0) != (dq >= 0))
+			{
+				float s = dp / (dp - dq);
+				int o = m*SIZE;
+				for(int j=0; j<SIZE; j++)
+					out[o+j] = in[p+j] + s*(in[q+j] - in[p+j]);
+				m++;
+			}
+		}
+		float[] tmp = in; in = out; out = tmp;
+		return m;
+	}
+
+	/**
+	 * Transform polygon vertex k to screen space and store it in the 
+	 * triangle at offset o.
+	 */
+	private void project(int k, int o, int width, int height)
+	{
+		int p = k*SIZE;
+		float iw = 1.f/in[p+CW];
+		triangle[o+SWTileRasterizer.X] = (in[p+CX]*iw + 1.f)*.5f*width;
+		triangle[o+SWTileRasterizer.Y] = (1.f - in[p+CY]*iw)*.5f*height;
+		triangle[o+SWTileRasterizer.Z] = (in[p+CZ]*iw + 1.f)*.5f;
+		triangle[o+SWTileRasterizer.IW] = iw;
+		triangle[o+SWTileRasterizer.R] = in[p+CR];
+		triangle[o+SWTileRasterizer.G] = in[p+CG];
+		triangle[o+SWTileRasterizer.B] = in[p+CB];
+		triangle[o+SWTileRasterizer.U] = in[p+CU];
+		triangle[o+SWTileRasterizer.V] = in[p+CV];
+	}
+}
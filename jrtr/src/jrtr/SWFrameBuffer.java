@@ -0,0 +1,202 @@
+package jrtr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * The frame buffer of the software renderer. It stores packed RGB colors
+ * in an <code>int[]</code> and depth values in a <code>float[]</code>,
+ * both in scanline order with a stride equal to the width. The color array
+ * directly backs a <code>BufferedImage</code>, so the image can be displayed
+ * (see {@link SWJPanel}) without copying pixels.
+ * <p>
+ * The arrays only grow. When the frame buffer is resized to a size that
+ * fits into the current arrays, they are reused and only the image
+ * object that wraps them is replaced.
+ * <p>
+ * The frame buffer also keeps a coarse depth buffer that stores the minimum
+ * and maximum depth of each block of {@link #BLOCK_SIZE}x{@link #BLOCK_SIZE}
+ * pixels. The rasterizer uses it to reject triangles and blocks that
+ * are hidden behind geometry that was already drawn (hierarchical z).
+ */
+public class SWFrameBuffer {
+
+	/**
+	 * Width and height of a block in the coarse depth buffer.
+	 */
+	public static final int BLOCK_SIZE = 8;
+
+	private static final DirectColorModel colorModel =
+		new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+	private int width, height;
+	private int[] color;
+	private float[] depth;
+	private BufferedImage image;
+	private int blocksX, blocksY;
+	private float[] blockMinDepth, blockMaxDepth;
+
+	public SWFrameBuffer()
+	{
+		color = new int[0];
+		depth = new float[0];
+		blockMinDepth = new float[0];
+		blockMaxDepth = new float[0];
+	}
+
+	/**
+	 * Set the size of the frame buffer. New arrays are only allocated if
+	 * the number of pixels exceeds the current capacity. The content of
+	 * the frame buffer is undefined after resizing.
+	 */
+	public void setSize(int width, int height)
+	{
+		width = Math.max(width, 0);
+		height = Math.max(height, 0);
+		if(width == this.width && height == this.height) return;
+
+		this.width = width;
+		this.height = height;
+		int n = width*height;
+		if(n > color.length)
+		{
+			color = new int[n];
+			depth = new float[n];
+		}
+		blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		blocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if(blocksX*blocksY > blockMaxDepth.length)
+		{
+			blockMinDepth = new float[blocksX*blocksY];
+			blockMaxDepth = new float[blocksX*blocksY];
+		}
+
+		image = n > 0 ? makeImage(color, width, height) : null;
+	}
+
+	/**
+	 * Make an RGB image that uses the given array of packed RGB pixels, 
+	 * in scanline order, as its storage.
+	 */
+	static BufferedImage makeImage(int[] color, int width, int height)
+	{
+		DataBufferInt dataBuffer = new DataBufferInt(color, width*height);
+		WritableRaster raster = Raster.createPackedRaster(dataBuffer, width, height, width,
+				colorModel.getMasks(), null);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return the packed RGB colors, one <code>int</code> per pixel. The
+	 * 		   array may be larger than <code>width*height</code>.
+	 */
+	public int[] getColor()
+	{
+		return color;
+	}
+
+	/**
+	 * @return the depth values, one <code>float</code> per pixel. The
+	 * 		   array may be larger than <code>width*height</code>.
+	 */
+	public float[] getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return an image that shares the color array of this frame buffer, or
+	 * 		   null if the frame buffer is empty
+	 */
+	public BufferedImage getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * @return the number of blocks per row in the coarse depth buffer
+	 */
+	public int getBlocksX()
+	{
+		return blocksX;
+	}
+
+	public int getBlocksY()
+	{
+		return blocksY;
+	}
+
+	/**
+	 * @return the minimum depth of each block, in scanline order with a
+	 * 		   stride of {@link #getBlocksX()}
+	 */
+	public float[] getBlockMinDepth()
+	{
+		return blockMinDepth;
+	}
+
+	/**
+	 * @return the maximum depth of each block, in scanline order with a
+	 * 		   stride of {@link #getBlocksX()}
+	 */
+	public float[] getBlockMaxDepth()
+	{
+		return blockMaxDepth;
+	}
+
+	/**
+	 * Clear the pixels in the rectangle [x0,x1) x [y0,y1) to the given
+	 * color and depth. The rectangle needs to be aligned to blocks, except 
+	 * at the right and bottom border of the frame buffer.
+	 */
+	public void clear(int x0, int y0, int x1, int y1, int c, float z)
+	{
+		for(int y=y0; y<y1; y++)
+		{
+			Arrays.fill(color, y*width+x0, y*width+x1, c);
+			Arrays.fill(depth, y*width+x0, y*width+x1, z);
+		}
+		int bx0 = x0 / BLOCK_SIZE, bx1 = (x1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		for(int by=y0/BLOCK_SIZE; by<(y1 + BLOCK_SIZE - 1)/BLOCK_SIZE; by++)
+		{
+			Arrays.fill(blockMinDepth, by*blocksX+bx0, by*blocksX+bx1, z);
+			Arrays.fill(blockMaxDepth, by*blocksX+bx0, by*blocksX+bx1, z);
+		}
+	}
+
+	/**
+	 * Recompute the minimum and maximum depth of block b from the depth
+	 * buffer. This needs to be called after pixels in the block were written.
+	 */
+	public void updateBlock(int b)
+	{
+		int x0 = (b % blocksX) * BLOCK_SIZE, y0 = (b / blocksX) * BLOCK_SIZE;
+		int x1 = Math.min(x0 + BLOCK_SIZE, width), y1 = Math.min(y0 + BLOCK_SIZE, height);
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for(int y=y0; y<y1; y++)
+		{
+			for(int i=y*width+x0; i<y*width+x1; i++)
+			{
+				float z = depth[i];
+				min = z < min ? z : min;
+				max = z > max ? z : max;
+			}
+		}
+		blockMinDepth[b] = min;
+		blockMaxDepth[b] = max;
+	}
+}
@@ -0,0 +1,32 @@
+package jrtr;
+
+import java.io.IOException;
+
+/**
+ * Receives the frames rendered by a {@link SWOffscreenRenderer}. Frames
+ * are passed to the sink on a background thread, one at a time and in the
+ * order they were rendered. Simple in-memory consumers can implement this
+ * interface directly, for example as a lambda expression. See 
+ * {@link SWPNGSequenceSink} and {@link SWRawRGBASink} for sinks that write 
+ * files.
+ */
+public interface SWFrameSink {
+
+	/**
+	 * Consume a frame.
+	 * 
+	 * @param frameNumber the number of the frame, starting at 0
+	 * @param width the width of the frame in pixels
+	 * @param height the height of the frame in pixels
+	 * @param pixels packed RGB pixels (<code>0x00RRGGBB</code>) in scanline 
+	 * 		  order. The array is a copy that belongs to the sink.
+	 */
+	void frame(long frameNumber, int width, int height, int[] pixels) throws IOException;
+
+	/**
+	 * Called after the last frame. Releases any resources held by the sink.
+	 */
+	default void close() throws IOException
+	{
+	}
+}
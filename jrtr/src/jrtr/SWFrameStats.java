@@ -0,0 +1,156 @@
+package jrtr;
+
+/**
+ * Counters collected by the software renderer ({@link SWRenderContext})
+ * while rendering a frame. The counters are reset at the beginning of
+ * each frame and are complete once <code>display</code> returns.
+ */
+public class SWFrameStats {
+
+	long triangles;
+	long binnedTriangles;
+	long hizTriangleRejects;
+	long hizBlockRejects;
+	long rasterizedBlocks;
+	long vertexCacheHits;
+	long vertexCacheMisses;
+	long rejectedTriangles;
+	long clippedTriangles;
+	long reusedTiles;
+	long culledMeshlets;
+
+	void reset()
+	{
+		triangles = 0;
+		binnedTriangles = 0;
+		hizTriangleRejects = 0;
+		hizBlockRejects = 0;
+		rasterizedBlocks = 0;
+		vertexCacheHits = 0;
+		vertexCacheMisses = 0;
+		rejectedTriangles = 0;
+		clippedTriangles = 0;
+		reusedTiles = 0;
+		culledMeshlets = 0;
+	}
+
+	/**
+	 * @return the number of triangles that were set up for rasterization
+	 */
+	public long getTriangles()
+	{
+		return triangles;
+	}
+
+	/**
+	 * @return the number of (triangle, tile) pairs, i.e., the number of
+	 * 		   triangles summed over all tiles
+	 */
+	public long getBinnedTriangles()
+	{
+		return binnedTriangles;
+	}
+
+	/**
+	 * @return the number of (triangle, tile) pairs that were rejected
+	 * 		   because the triangle lies behind the farthest depth in the tile
+	 */
+	public long getHizTriangleRejects()
+	{
+		return hizTriangleRejects;
+	}
+
+	/**
+	 * @return the number of 8x8 pixel blocks overlapped by a triangle that
+	 * 		   were rejected because the triangle lies behind the farthest
+	 * 		   depth in the block
+	 */
+	public long getHizBlockRejects()
+	{
+		return hizBlockRejects;
+	}
+
+	/**
+	 * @return the number of 8x8 pixel blocks that were rasterized per pixel
+	 */
+	public long getRasterizedBlocks()
+	{
+		return rasterizedBlocks;
+	}
+
+	/**
+	 * @return the number of vertex references that were served by the
+	 * 		   post-transform vertex cache
+	 */
+	public long getVertexCacheHits()
+	{
+		return vertexCacheHits;
+	}
+
+	/**
+	 * @return the number of vertices that were transformed, i.e., the number
+	 * 		   of vertex references that missed the post-transform cache
+	 */
+	public long getVertexCacheMisses()
+	{
+		return vertexCacheMisses;
+	}
+
+	/**
+	 * @return the fraction of vertex references that hit the post-transform
+	 * 		   cache, or 0 if no vertices were referenced
+	 */
+	public double getVertexCacheHitRate()
+	{
+		long n = vertexCacheHits + vertexCacheMisses;
+		return n == 0 ? 0 : (double)vertexCacheHits / n;
+	}
+
+	/**
+	 * @return the number of triangles that were rejected because all their 
+	 * 		   vertices are outside the same plane of the view frustum
+	 */
+	public long getRejectedTriangles()
+	{
+		return rejectedTriangles;
+	}
+
+	/**
+	 * @return the number of triangles that were clipped against the near
+	 * 		   plane or the guard band
+	 */
+	public long getClippedTriangles()
+	{
+		return clippedTriangles;
+	}
+
+	/**
+	 * @return the number of tiles that were not rasterized because nothing
+	 * 		   changed in them, i.e., that show the previous frame
+	 */
+	public long getReusedTiles()
+	{
+		return reusedTiles;
+	}
+
+	/**
+	 * @return the number of meshlets that were culled because they are
+	 * 		   outside the view frustum or face away from the camera, see
+	 * 		   {@link Meshlets}
+	 */
+	public long getCulledMeshlets()
+	{
+		return culledMeshlets;
+	}
+
+	public String toString()
+	{
+		return "vertex cache hit rate " + String.format("%.3f", getVertexCacheHitRate()) +
+			", rejected " + rejectedTriangles + ", clipped " + clippedTriangles +
+			", triangles " + triangles + ", binned " + binnedTriangles +
+			", hi-z rejected triangles " + hizTriangleRejects +
+			", hi-z rejected blocks " + hizBlockRejects +
+			", rasterized blocks " + rasterizedBlocks + ", reused tiles " + reusedTiles +
+			", culled meshlets " + culledMeshlets;
+	}
+}
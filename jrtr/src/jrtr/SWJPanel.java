@@ -3,15 +3,34 @@ package jrtr;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.event.HierarchyBoundsListener;
 import java.awt.event.HierarchyListener;
 import java.awt.event.HierarchyEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.JPanel;
 
-/** 
+/**
  * Shows the bitmap rendered by the the software renderer. This class also
- * redirects requests to redraw the image (via <code>paintComponent</code>)
+ * redirects requests to redraw the image (via <code>repaint</code>)
  * to the software renderer {@link SWRenderContext}.
+ * <p>
+ * Rendering does not happen on the AWT event thread. A dedicated render
+ * thread renders into a back buffer while the last finished frame (the
+ * front buffer) is shown, and the back buffer becomes the front buffer
+ * atomically when a frame is complete. <code>repaint</code> only asks the
+ * render thread for a new frame, and <code>paintComponent</code> only
+ * copies the front buffer to the screen, via a <code>VolatileImage</code>
+ * if possible.
+ * <p>
+ * There are three frame buffers, so the render thread can always render
+ * into a buffer that is neither the front buffer nor the buffer that is
+ * being painted. No locks are shared between the two threads, so painting
+ * never waits for a frame to be rendered.
  */
 public class SWJPanel extends JPanel {
 
@@ -23,60 +42,309 @@ public class SWJPanel extends JPanel {
 	private class SWPanelHierarchyBoundsListener implements HierarchyBoundsListener {
 
 		private SWRenderContext renderContext;
-		
+
 		public SWPanelHierarchyBoundsListener(SWRenderContext renderContext)
 		{
 			this.renderContext = renderContext;
 		}
-		
+
 		public void ancestorMoved(HierarchyEvent e)
 		{
 		}
-		
+
 		public void ancestorResized(HierarchyEvent e)
 		{
 			Dimension d = e.getChanged().getSize();
 			renderContext.setViewportSize(d.width, d.height);
+			requestFrame();
 		}
 	}
 
 	private class SWPanelHierarchyListener implements HierarchyListener {
 
 		private SWRenderContext renderContext;
-		
+
 		public SWPanelHierarchyListener(SWRenderContext renderContext)
 		{
 			this.renderContext = renderContext;
 		}
-		
+
 		public void hierarchyChanged(HierarchyEvent e)
 		{
 			if((e.getID() & HierarchyEvent.HIERARCHY_CHANGED)!=0 & e.getChangedParent()!=null)
 			{
 				Dimension d = e.getChangedParent().getPreferredSize();
 				renderContext.setViewportSize(d.width, d.height);
+				requestFrame();
+			}
+		}
+	}
+
+	/**
+	 * A finished frame. A frame is either presented at least once, or
+	 * dropped because a newer frame replaced it before it was presented.
+	 */
+	private static class Frame {
+
+		final SWFrameBuffer frameBuffer;
+		final AtomicBoolean presented;
+
+		Frame(SWFrameBuffer frameBuffer)
+		{
+			this.frameBuffer = frameBuffer;
+			presented = new AtomicBoolean(false);
+		}
+	}
+
+	/**
+	 * Renders a frame whenever one was requested, then swaps it to the
+	 * front and schedules it to be painted.
+	 */
+	private class RenderThread extends Thread {
+
+		private boolean running = true;
+		private boolean frameRequested = true;
+
+		RenderThread()
+		{
+			super("SWJPanel render thread");
+			setDaemon(true);
+		}
+
+		synchronized void requestFrame()
+		{
+			frameRequested = true;
+			notify();
+		}
+
+		synchronized void shutdown()
+		{
+			running = false;
+			notify();
+		}
+
+		private synchronized boolean waitForRequest() throws InterruptedException
+		{
+			while(running && !frameRequested)
+				wait();
+			frameRequested = false;
+			return running;
+		}
+
+		public void run()
+		{
+			try
+			{
+				while(waitForRequest())
+				{
+					SWFrameBuffer frameBuffer = backBuffer();
+					renderContext.display(frameBuffer);
+					framesRendered.incrementAndGet();
+
+					Frame old = front.getAndSet(new Frame(frameBuffer));
+					if(old != null && old.presented.compareAndSet(false, true))
+						framesDropped.incrementAndGet();
+
+					present();
+				}
+			} catch(InterruptedException e)
+			{
+			}
+		}
+
+		/**
+		 * @return a frame buffer that is neither the front buffer nor being
+		 * 		   painted. The event thread announces the buffer it paints
+		 * 		   before it checks that it is still the front buffer, see
+		 * 		   {@link SWJPanel#paintComponent}, so a buffer that is
+		 * 		   announced after this check is not painted.
+		 */
+		private SWFrameBuffer backBuffer()
+		{
+			Frame f = front.get();
+			SWFrameBuffer shown = f != null ? f.frameBuffer : null;
+			SWFrameBuffer painted = painting.get();
+			for(SWFrameBuffer b : frameBuffers)
+			{
+				if(b != shown && b != painted)
+					return b;
 			}
+			throw new IllegalStateException();
 		}
 	}
 
 	private SWRenderContext renderContext;
-		
+	private SWFrameBuffer[] frameBuffers;
+	private final AtomicReference<Frame> front = new AtomicReference<Frame>();
+	// The frame buffer that the event thread is copying to the screen
+	private final AtomicReference<SWFrameBuffer> painting = new AtomicReference<SWFrameBuffer>();
+	private volatile RenderThread renderThread;
+	private VolatileImage volatileImage;
+
+	private final AtomicLong framesRendered = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	private final AtomicLong framesRepeated = new AtomicLong();
+
 	public SWJPanel(SWRenderContext renderContext)
 	{
 		this.renderContext = renderContext;
+		frameBuffers = new SWFrameBuffer[] {new SWFrameBuffer(), new SWFrameBuffer(), new SWFrameBuffer()};
 		this.addHierarchyBoundsListener(new SWPanelHierarchyBoundsListener(renderContext));
 		this.addHierarchyListener(new SWPanelHierarchyListener(renderContext));
 	}
-	
+
+	/**
+	 * Start the render thread when the panel becomes displayable.
+	 */
+	public void addNotify()
+	{
+		super.addNotify();
+		if(renderThread == null)
+		{
+			renderThread = new RenderThread();
+			renderThread.start();
+		}
+	}
+
 	/**
-	 * Redirect paint requests to the renderer.
+	 * Stop the render thread when the panel is no longer displayable.
+	 */
+	public void removeNotify()
+	{
+		if(renderThread != null)
+		{
+			renderThread.shutdown();
+			renderThread = null;
+		}
+		if(volatileImage != null)
+		{
+			volatileImage.flush();
+			volatileImage = null;
+		}
+		super.removeNotify();
+	}
+
+	/**
+	 * Ask the render thread for a new frame. The frame is painted as soon
+	 * as it is finished. Requests that arrive while a frame is rendered are
+	 * combined into one.
+	 */
+	public void requestFrame()
+	{
+		RenderThread t = renderThread;
+		if(t != null) t.requestFrame();
+	}
+
+	/**
+	 * Redirect repaint requests to the render thread. All variants of
+	 * <code>repaint</code> end up here.
+	 */
+	public void repaint(long tm, int x, int y, int width, int height)
+	{
+		if(renderThread != null)
+			requestFrame();
+		else
+			super.repaint(tm, x, y, width, height);
+	}
+
+	/**
+	 * Schedule painting of the front buffer on the event thread.
+	 */
+	private void present()
+	{
+		super.repaint(0, 0, 0, getWidth(), getHeight());
+	}
+
+	/**
+	 * Copy the latest finished frame to the screen.
 	 */
 	public void paintComponent(Graphics g)
 	{
-		renderContext.display();
-		((Graphics2D)g).drawImage(renderContext.getColorBuffer(), null, 0, 0);
+		// Announce the buffer before checking that it is still the front
+		// buffer. If a newer frame was finished in between, the render
+		// thread may already render into the announced buffer.
+		Frame frame;
+		do
+		{
+			frame = front.get();
+			if(frame == null)
+			{
+				super.paintComponent(g);
+				return;
+			}
+			painting.set(frame.frameBuffer);
+		} while(front.get() != frame);
+
+		if(!frame.presented.compareAndSet(false, true))
+			framesRepeated.incrementAndGet();
+
+		try
+		{
+			BufferedImage image = frame.frameBuffer.getImage();
+			if(image != null)
+				blit(g, image);
+		} finally
+		{
+			painting.set(null);
+		}
+	}
+
+	/**
+	 * Draw the image through a <code>VolatileImage</code>, which can be
+	 * drawn to the screen by the graphics hardware. If no volatile image
+	 * can be made, the image is drawn directly.
+	 */
+	private void blit(Graphics g, BufferedImage image)
+	{
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		int w = image.getWidth(), h = image.getHeight();
+		do
+		{
+			if(gc != null && (volatileImage == null || volatileImage.getWidth() != w ||
+					volatileImage.getHeight() != h ||
+					volatileImage.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE))
+			{
+				if(volatileImage != null) volatileImage.flush();
+				volatileImage = createVolatileImage(w, h);
+			}
+			if(volatileImage == null)
+			{
+				((Graphics2D)g).drawImage(image, null, 0, 0);
+				return;
+			}
+			Graphics2D vg = volatileImage.createGraphics();
+			vg.drawImage(image, null, 0, 0);
+			vg.dispose();
+			g.drawImage(volatileImage, 0, 0, null);
+		} while(volatileImage.contentsLost());
 	}
-	
+
+	/**
+	 * @return the number of frames rendered by the render thread
+	 */
+	public long getFramesRendered()
+	{
+		return framesRendered.get();
+	}
+
+	/**
+	 * @return the number of rendered frames that were never painted,
+	 * 		   because a newer frame was finished first
+	 */
+	public long getFramesDropped()
+	{
+		return framesDropped.get();
+	}
+
+	/**
+	 * @return the number of times a frame was painted again, for example
+	 * 		   because the window was exposed or no new frame was ready
+	 */
+	public long getFramesRepeated()
+	{
+		return framesRepeated.get();
+	}
+
 	public void reshape()
 	{
 	}
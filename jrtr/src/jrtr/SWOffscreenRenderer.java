@@ -0,0 +1,128 @@
+package jrtr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless render target for the software renderer. Unlike 
+ * {@link SWRenderPanel}, it does not need a display or Swing: it calls 
+ * {@link SWRenderContext#display(SWFrameBuffer)} directly and passes each 
+ * finished frame to a {@link SWFrameSink}.
+ * <p>
+ * The sink runs on a background thread, so encoding and writing a frame
+ * overlaps with rendering the next one. To bound memory use, at most
+ * a fixed number of frames can wait for the sink. {@link #renderFrame} only 
+ * blocks if the sink falls behind by more than that.
+ */
+public class SWOffscreenRenderer {
+
+	private SWRenderContext renderContext;
+	private SWFrameBuffer frameBuffer;
+	private SWFrameSink sink;
+	private ExecutorService executor;
+	private Semaphore pendingFrames;
+	private long frameNumber;
+	private volatile Exception error;
+
+	/**
+	 * Make an offscreen renderer that allows up to four frames to wait
+	 * for the sink.
+	 */
+	public SWOffscreenRenderer(SWRenderContext renderContext, int width, int height, SWFrameSink sink)
+	{
+		this(renderContext, width, height, sink, 4);
+	}
+
+	/**
+	 * @param renderContext the renderer, which needs to have a scene manager
+	 * @param width the width of the rendered frames
+	 * @param height the height of the rendered frames
+	 * @param sink receives the rendered frames
+	 * @param maxPendingFrames the number of frames that may wait for the sink
+	 */
+	public SWOffscreenRenderer(SWRenderContext renderContext, int width, int height, 
+			SWFrameSink sink, int maxPendingFrames)
+	{
+		this.renderContext = renderContext;
+		this.sink = sink;
+		frameBuffer = new SWFrameBuffer();
+		pendingFrames = new Semaphore(maxPendingFrames);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "SWOffscreenRenderer sink");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		renderContext.setViewportSize(width, height);
+	}
+
+	public SWRenderContext getRenderContext()
+	{
+		return renderContext;
+	}
+
+	/**
+	 * Render a frame and queue it for the sink.
+	 * 
+	 * @return the number of the frame
+	 * @throws IOException if the sink failed on an earlier frame
+	 */
+	public long renderFrame() throws IOException, InterruptedException
+	{
+		checkError();
+
+		renderContext.display(frameBuffer);
+		final int width = frameBuffer.getWidth();
+		final int height = frameBuffer.getHeight();
+		final int[] pixels = Arrays.copyOf(frameBuffer.getColor(), width*height);
+		final long n = frameNumber++;
+
+		pendingFrames.acquire();
+		executor.execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					if(error == null)
+						sink.frame(n, width, height, pixels);
+				} catch(Exception e)
+				{
+					error = e;
+				} finally
+				{
+					pendingFrames.release();
+				}
+			}
+		});
+		return n;
+	}
+
+	/**
+	 * Wait until the sink has consumed all frames, then close the sink.
+	 * 
+	 * @throws IOException if the sink failed on any frame, or when closing
+	 */
+	public void close() throws IOException, InterruptedException
+	{
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		sink.close();
+		checkError();
+	}
+
+	private void checkError() throws IOException
+	{
+		Exception e = error;
+		if(e instanceof IOException) 
+			throw (IOException)e;
+		if(e != null) 
+			throw new IOException("Frame sink failed.", e);
+	}
+}
@@ -0,0 +1,35 @@
+package jrtr;
+
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes each frame to a separate PNG file.
+ */
+public class SWPNGSequenceSink implements SWFrameSink {
+
+	private File directory;
+	private String pattern;
+
+	/**
+	 * @param directory the directory that the files are written to. It is
+	 * 		  created if it does not exist.
+	 * @param pattern a format string that makes the file name from the frame
+	 * 		  number, for example <code>"frame%05d.png"</code>
+	 */
+	public SWPNGSequenceSink(File directory, String pattern) throws IOException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory " + directory);
+		this.directory = directory;
+		this.pattern = pattern;
+	}
+
+	public void frame(long frameNumber, int width, int height, int[] pixels) throws IOException
+	{
+		File f = new File(directory, String.format(pattern, frameNumber));
+		if(!ImageIO.write(SWFrameBuffer.makeImage(pixels, width, height), "png", f))
+			throw new IOException("No PNG writer available.");
+	}
+}
@@ -0,0 +1,47 @@
+package jrtr;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends all frames to a single file of raw pixels, four bytes per pixel
+ * in the order R, G, B, A, with alpha set to 255. The frames follow each 
+ * other without headers, so all frames need to have the same size to be
+ * read back, for example with 
+ * <code>ffmpeg -f rawvideo -pixel_format rgba -video_size WxH</code>.
+ */
+public class SWRawRGBASink implements SWFrameSink {
+
+	private OutputStream out;
+	private byte[] row;
+
+	public SWRawRGBASink(String fileName) throws IOException
+	{
+		out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+		row = new byte[0];
+	}
+
+	public void frame(long frameNumber, int width, int height, int[] pixels) throws IOException
+	{
+		if(row.length < 4*width) row = new byte[4*width];
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				int c = pixels[y*width + x];
+				row[4*x]   = (byte)(c >> 16);
+				row[4*x+1] = (byte)(c >> 8);
+				row[4*x+2] = (byte)c;
+				row[4*x+3] = (byte)0xff;
+			}
+			out.write(row, 0, 4*width);
+		}
+	}
+
+	public void close() throws IOException
+	{
+		out.close();
+	}
+}
@@ -3,6 +3,13 @@ package jrtr;
 import jrtr.RenderContext;
 
 import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import javax.vecmath.*;
 
 
 /**
@@ -12,11 +19,161 @@ import java.awt.image.*;
  * <p>
  * To use the software renderer, you will simply replace {@link GLRenderPanel} 
  * with {@link SWRenderPanel} in the user application.
+ * <p>
+ * Triangles are transformed to screen space in {@link #draw}, and rasterized
+ * in parallel by a {@link SWTileRasterizer} at the end of the frame.
+ * <p>
+ * Frames are rendered incrementally: the screen space bounds of each shape
+ * are remembered from frame to frame, and only the tiles overlapped by the
+ * previous or current bounds of shapes that changed (moved, were added or 
+ * removed, or got new vertex data or a new texture) are cleared and 
+ * rasterized again. All other tiles keep the content of the previous frame
+ * rendered into the same frame buffer. If the camera or the frustum change,
+ * the whole frame is redrawn. Changes that cannot be detected, such as
+ * modifying vertex data in place, require a call to {@link #invalidate}.
  */
 public class SWRenderContext implements RenderContext {
 
+	/**
+	 * The available inner loops of the rasterizer, see 
+	 * {@link #setRasterizerStrategy}.
+	 */
+	public enum RasterizerStrategy
+	{
+		/**
+		 * Rasterize one pixel at a time ({@link SWScalarBlockRasterizer}).
+		 */
+		SCALAR,
+		
+		/**
+		 * Rasterize a row of eight pixels at a time using the incubating 
+		 * Java Vector API (<code>jdk.incubator.vector</code>). The class
+		 * <code>SWVectorBlockRasterizer</code> is in the separate source
+		 * folder <code>src-vector</code>, which needs to be compiled and run
+		 * with <code>--add-modules jdk.incubator.vector</code>.
+		 */
+		VECTOR
+	}
+
 	private SceneManagerInterface sceneManager;
-	private BufferedImage colorBuffer;
+	private SWFrameBuffer frameBuffer;
+	private int width, height;
+	private volatile int[] viewportSize = {0, 0};
+	private SWTileRasterizer rasterizer;
+	private SWFrameStats stats;
+	private RasterizerStrategy rasterizerStrategy;
+	private SWVertexCache vertexCache;
+	private RenderQueue queue;
+	private SWClipper clipper;
+	private float[] triangle;
+	private int[] indexChunk;
+	private int[] trianglePlanes;
+	private Meshlets.Culler culler;
+	private boolean backfaceCulling;
+	
+	/**
+	 * What is known about a shape from the previous frame. A shape may be 
+	 * drawn several times per frame, so one transformation is stored for
+	 * each time it was drawn, and the bounds cover all of them.
+	 */
+	private static class ShapeState
+	{
+		int frame;
+		int count;
+		boolean changed;
+		VertexData vertexData;
+		SWTexture texture;
+		ArrayList<Matrix4f> transformations = new ArrayList<Matrix4f>();
+		float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		float[] previousBounds = bounds.clone();
+	}
+	
+	private boolean incremental;
+	private int frame;
+	private IdentityHashMap<Shape, ShapeState> shapeStates;
+	private Matrix4f viewProjection;
+	private boolean redrawAll;
+	private BitSet dirtyTiles;
+	private float[] bounds;
+	
+	// For each frame buffer, the tiles that changed since it was last 
+	// rendered. Frame buffers not in the map are redrawn completely.
+	private WeakHashMap<SWFrameBuffer, BitSet> pendingTiles;
+	
+	public SWRenderContext()
+	{
+		rasterizer = new SWTileRasterizer(ForkJoinPool.commonPool());
+		frameBuffer = new SWFrameBuffer();
+		stats = new SWFrameStats();
+		rasterizerStrategy = RasterizerStrategy.SCALAR;
+		vertexCache = new SWVertexCache();
+		queue = new RenderQueue();
+		clipper = new SWClipper();
+		triangle = new float[3*SWTileRasterizer.VERTEX_SIZE];
+		indexChunk = new int[3*256];
+		trianglePlanes = new int[indexChunk.length/3];
+		culler = new Meshlets.Culler();
+		incremental = true;
+		shapeStates = new IdentityHashMap<Shape, ShapeState>();
+		dirtyTiles = new BitSet();
+		bounds = new float[4];
+		pendingTiles = new WeakHashMap<SWFrameBuffer, BitSet>();
+	}
+	
+	/**
+	 * Enable or disable incremental rendering. If it is disabled, every
+	 * frame is redrawn completely. It is enabled by default.
+	 */
+	public synchronized void setIncremental(boolean incremental)
+	{
+		this.incremental = incremental;
+		invalidate();
+	}
+	
+	public boolean isIncremental()
+	{
+		return incremental;
+	}
+	
+	/**
+	 * Redraw the next frame completely, in all frame buffers. Call this 
+	 * after changing the scene in a way that is not detected automatically,
+	 * such as modifying vertex data or texture images in place.
+	 */
+	public synchronized void invalidate()
+	{
+		pendingTiles.clear();
+	}
+	
+	/**
+	 * Enable or disable back face culling. If it is enabled, triangles
+	 * that are clockwise on the screen are not drawn, and meshlets whose
+	 * triangles all face away from the camera are skipped. Triangles are
+	 * counter-clockwise when seen from the front, as in OpenGL. It is 
+	 * disabled by default.
+	 */
+	public synchronized void setBackfaceCulling(boolean backfaceCulling)
+	{
+		this.backfaceCulling = backfaceCulling;
+		rasterizer.setBackfaceCulling(backfaceCulling);
+		invalidate();
+	}
+	
+	public boolean isBackfaceCulling()
+	{
+		return backfaceCulling;
+	}
+	
+	/**
+	 * Set the thread pool that is used to rasterize the tiles of the
+	 * color buffer. By default, the common <code>ForkJoinPool</code>
+	 * is used.
+	 */
+	public void setThreadPool(ForkJoinPool pool)
+	{
+		rasterizer.setPool(pool);
+	}
 		
 	public void setSceneManager(SceneManagerInterface sceneManager)
 	{
@@ -24,59 +181,381 @@ public class SWRenderContext implements RenderContext {
 	}
 	
 	/**
-	 * This is called by the SWRenderPanel to render the scene to the 
-	 * software frame buffer.
+	 * Render the scene to the software frame buffer of this render context,
+	 * see {@link #getColorBuffer}.
 	 */
 	public void display()
+	{
+		display(frameBuffer);
+	}
+	
+	/**
+	 * Render the scene to the given frame buffer, which is resized to the
+	 * viewport size if necessary. This is called by the render thread of 
+	 * the {@link SWJPanel}, which renders to alternating frame buffers. 
+	 * Only one frame can be rendered at a time.
+	 * <p>
+	 * Objects are drawn in the order of a {@link RenderQueue}: nearby 
+	 * objects first, so that more hidden triangles are rejected early, and
+	 * objects with the same vertex data one after the other, so that its
+	 * vertices are decoded only once, see {@link SWVertexCache}.
+	 */
+	public synchronized void display(SWFrameBuffer frameBuffer)
 	{
 		if(sceneManager == null) return;
 		
-		beginFrame();
+		beginFrame(frameBuffer);
 	
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+		queue.clear();
 		SceneManagerIterator iterator = sceneManager.iterator();	
 		while(iterator.hasNext())
 		{
-			draw(iterator.next());
+			RenderItem r = iterator.next();
+			if(r.getShape() != null) queue.add(r, camera);
 		}		
+		queue.sort();
+		for(int i=0; i<queue.size(); i++)
+			draw(queue.get(i));
 		
-		endFrame();
+		endFrame(frameBuffer);
 	}
 
 	/**
-	 * This is called by the {@link SWJPanel} to obtain the color buffer that
-	 * will be displayed.
+	 * Obtain the color buffer that was rendered by {@link #display()}.
 	 */
 	public BufferedImage getColorBuffer()
 	{
-		return colorBuffer;
+		return frameBuffer.getImage();
 	}
 	
 	/**
-	 * Set a new viewport size. The render context will also need to store
-	 * a viewport matrix, which you need to reset here. 
+	 * Select the inner loop of the rasterizer. If the vector strategy is 
+	 * requested but the module <code>jdk.incubator.vector</code> or the
+	 * class implementing it are not available, the scalar strategy is used.
+	 * 
+	 * @return the strategy that is actually used
+	 */
+	public RasterizerStrategy setRasterizerStrategy(RasterizerStrategy strategy)
+	{
+		SWBlockRasterizer blockRasterizer = null;
+		if(strategy == RasterizerStrategy.VECTOR)
+		{
+			blockRasterizer = makeVectorBlockRasterizer();
+		}
+		if(blockRasterizer == null)
+		{
+			blockRasterizer = new SWScalarBlockRasterizer();
+			strategy = RasterizerStrategy.SCALAR;
+		}
+		rasterizer.setBlockRasterizer(blockRasterizer);
+		rasterizerStrategy = strategy;
+		return strategy;
+	}
+	
+	public RasterizerStrategy getRasterizerStrategy()
+	{
+		return rasterizerStrategy;
+	}
+	
+	/**
+	 * Load the vector rasterizer by reflection, so that this class does not
+	 * depend on the incubator module.
+	 * 
+	 * @return the vector rasterizer, or null if it is not available
+	 */
+	private static SWBlockRasterizer makeVectorBlockRasterizer()
+	{
+		if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+			return null;
+		try
+		{
+			Class<?> c = Class.forName("jrtr.SWVectorBlockRasterizer");
+			return (SWBlockRasterizer)c.getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException e)
+		{
+			return null;
+		} catch(LinkageError e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the statistics of the last frame rendered by {@link #display}
+	 */
+	public SWFrameStats getFrameStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * @return the frame buffer the scene is rendered to
+	 */
+	public SWFrameBuffer getFrameBuffer()
+	{
+		return frameBuffer;
+	}
+	
+	/**
+	 * Set a new viewport size. This may be called from any thread; the new 
+	 * size takes effect at the beginning of the next frame.
 	 */
 	public void setViewportSize(int width, int height)
 	{
-		colorBuffer = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		viewportSize = new int[] {width, height};
 	}
 		
 	/**
-	 * Clear the framebuffer here.
+	 * Apply a new viewport size and discard the triangles of the previous 
+	 * frame. The framebuffer is cleared tile by tile during rasterization.
+	 */
+	private void beginFrame(SWFrameBuffer frameBuffer)
+	{
+		int[] size = viewportSize;
+		if(size[0] != width || size[1] != height)
+		{
+			width = size[0];
+			height = size[1];
+			rasterizer.setViewportSize(width, height);
+			pendingTiles.clear();
+			shapeStates.clear();
+		}
+		if(frameBuffer.getWidth() != width || frameBuffer.getHeight() != height)
+		{
+			frameBuffer.setSize(width, height);
+			pendingTiles.remove(frameBuffer);
+		}
+		
+		stats.reset();
+		rasterizer.beginFrame();
+		
+		frame++;
+		dirtyTiles.clear();
+		Matrix4f m = new Matrix4f(sceneManager.getFrustum().getProjectionMatrix());
+		m.mul(sceneManager.getCamera().getCameraMatrix());
+		redrawAll = !m.equals(viewProjection);
+		viewProjection = m;
+	}
+	
+	/**
+	 * Find the tiles that changed and rasterize them into the frame buffer.
+	 */
+	private void endFrame(SWFrameBuffer frameBuffer)
+	{
+		Iterator<ShapeState> i = shapeStates.values().iterator();
+		while(i.hasNext())
+		{
+			ShapeState state = i.next();
+			if(state.frame != frame)
+			{
+				// The shape was removed
+				markTiles(state.bounds);
+				i.remove();
+				continue;
+			}
+			if(state.count < state.transformations.size())
+			{
+				state.transformations.subList(state.count, state.transformations.size()).clear();
+				state.changed = true;
+			}
+			if(state.changed)
+			{
+				markTiles(state.previousBounds);
+				markTiles(state.bounds);
+			}
+		}
+		
+		if(redrawAll || !incremental)
+		{
+			pendingTiles.clear();
+		} else
+		{
+			for(BitSet tiles : pendingTiles.values())
+				tiles.or(dirtyTiles);
+		}
+		BitSet tiles = pendingTiles.get(frameBuffer);
+		rasterizer.rasterize(frameBuffer, stats, tiles);
+		if(incremental)
+			pendingTiles.put(frameBuffer, new BitSet(rasterizer.getNumberOfTiles()));
+	}
+	
+	private void markTiles(float[] b)
+	{
+		rasterizer.markTiles(dirtyTiles, b[0], b[1], b[2], b[3]);
+	}
+	
+	/**
+	 * Compare a shape with the previous frame and prepare to collect its
+	 * screen space bounds.
+	 * 
+	 * @param vertexData the vertex data that is drawn, which differs from
+	 * 		  the vertex data of the shape if a level of detail was selected
 	 */
-	private void beginFrame()
+	private ShapeState beginShape(Shape shape, Matrix4f t, VertexData vertexData, SWTexture texture)
 	{
+		ShapeState state = shapeStates.get(shape);
+		if(state == null)
+		{
+			state = new ShapeState();
+			state.changed = true;
+			state.frame = frame;
+			shapeStates.put(shape, state);
+		} else if(state.frame != frame)
+		{
+			state.frame = frame;
+			state.count = 0;
+			state.changed = false;
+			float[] b = state.previousBounds;
+			state.previousBounds = state.bounds;
+			state.bounds = b;
+			b[0] = b[1] = Float.POSITIVE_INFINITY;
+			b[2] = b[3] = Float.NEGATIVE_INFINITY;
+		}
+		
+		if(state.count == state.transformations.size())
+		{
+			state.transformations.add(new Matrix4f(t));
+			state.changed = true;
+		} else if(!state.transformations.get(state.count).equals(t))
+		{
+			state.transformations.get(state.count).set(t);
+			state.changed = true;
+		}
+		state.count++;
+		if(state.vertexData != vertexData || state.texture != texture)
+		{
+			state.vertexData = vertexData;
+			state.texture = texture;
+			state.changed = true;
+		}
+		
+		rasterizer.resetBounds();
+		return state;
 	}
 	
-	private void endFrame()
-	{		
+	/**
+	 * Add the bounds of the triangles drawn since {@link #beginShape}.
+	 */
+	private void endShape(ShapeState state)
+	{
+		rasterizer.getBounds(bounds);
+		float[] b = state.bounds;
+		b[0] = Math.min(b[0], bounds[0]); b[1] = Math.min(b[1], bounds[1]);
+		b[2] = Math.max(b[2], bounds[2]); b[3] = Math.max(b[3], bounds[3]);
 	}
 	
 	/**
-	 * The main rendering method. You will need to implement this to draw
-	 * 3D objects.
+	 * The main rendering method. Transforms the vertices of the object to
+	 * screen space, assembles triangles and passes them to the rasterizer. 
+	 * Each vertex is transformed once, see {@link SWVertexCache}. Triangles
+	 * are rejected, accepted or clipped using the outcodes of their vertices,
+	 * see {@link SWClipper}. If the vertex data has {@link Meshlets},
+	 * meshlets that cannot be visible are skipped before any of their
+	 * vertices are transformed.
 	 */
 	private void draw(RenderItem renderItem)
 	{
+		Shape shape = renderItem.getShape();
+		SWTexture texture = getTexture(shape);
+		VertexData vertexData = renderItem.getVertexData();
+		ShapeState state = beginShape(shape, renderItem.getT(), vertexData, texture);
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		
+		// Don't draw if there are no indices
+		if(indices == null) return;
+		
+		// The object-to-camera and object-to-clip space transforms
+		Matrix4f modelView = new Matrix4f(sceneManager.getCamera().getCameraMatrix());
+		modelView.mul(renderItem.getT());
+		Matrix4f t = new Matrix4f();
+		t.set(sceneManager.getFrustum().getProjectionMatrix());
+		t.mul(modelView);
+		
+		vertexCache.begin(vertexData, t, width, height, stats);
+		if(!vertexCache.hasPositions()) return;
+		rasterizer.setTexture(texture);
+		
+		int m = indices.size() - indices.size() % 3;
+		Meshlets meshlets = vertexData.getMeshlets();
+		if(meshlets == null)
+		{
+			drawTriangles(indices, 0, m);
+		} else
+		{
+			// Draw the visible meshlets, merging adjacent ones into one range
+			culler.setTransformation(t, modelView, backfaceCulling);
+			int first = 0, end = 0;
+			for(int k=0; k<meshlets.size(); k++)
+			{
+				if(!culler.isVisible(meshlets, k))
+				{
+					stats.culledMeshlets++;
+					continue;
+				}
+				if(meshlets.getFirstIndex(k) != end)
+				{
+					drawTriangles(indices, first, end);
+					first = meshlets.getFirstIndex(k);
+				}
+				end = meshlets.getFirstIndex(k) + meshlets.getNumberOfIndices(k);
+			}
+			drawTriangles(indices, first, end);
+		}
+		endShape(state);
+	}
+	
+	/**
+	 * Assemble the triangles with the indices first to end-1 and pass them
+	 * to the rasterizer. Each chunk of indices is processed in passes: the
+	 * vertices are transformed, the triangles are classified from the 
+	 * outcodes of the vertices, see {@link SWClipper#classify}, and then the
+	 * triangles that are not rejected are drawn or clipped.
+	 */
+	private void drawTriangles(IndexBuffer indices, int first, int end)
+	{
+		// Indices are decoded in chunks, see IndexBuffer#get(int, int[], int)
+		final int n = SWTileRasterizer.VERTEX_SIZE;
+		int[] chunk = indexChunk;
+		int[] planes = trianglePlanes;
+		for(int offset=first; offset<end; offset+=chunk.length)
+		{
+			int count = Math.min(chunk.length, end - offset);
+			indices.get(offset, chunk, count);
+			for(int j=0; j<count; j++)
+				vertexCache.fetch(chunk[j]);
+			
+			int visible = SWClipper.classify(vertexCache.outcodes, chunk, count, planes);
+			stats.rejectedTriangles += count/3 - visible;
+			if(visible == 0) continue;
+			
+			for(int j=0, k=0; j<count; j+=3, k++)
+			{
+				if(planes[k] == 0)
+				{
+					vertexCache.store(chunk[j], triangle, 0);
+					vertexCache.store(chunk[j+1], triangle, n);
+					vertexCache.store(chunk[j+2], triangle, 2*n);
+					rasterizer.addTriangle(triangle);
+				} else if(planes[k] != SWClipper.REJECTED)
+				{
+					stats.clippedTriangles++;
+					clipper.clip(vertexCache, chunk[j], chunk[j+1], chunk[j+2], planes[k],
+							width, height, rasterizer);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the loaded texture of the material of the shape, or null
+	 */
+	private static SWTexture getTexture(Shape shape)
+	{
+		Material material = shape.getMaterial();
+		if(material == null || !(material.getTexture() instanceof SWTexture)) return null;
+		SWTexture texture = (SWTexture)material.getTexture();
+		return texture.isLoaded() ? texture : null;
 	}
 	
 	/**
@@ -88,7 +567,7 @@ public class SWRenderContext implements RenderContext {
 	}
 
 	/**
-	 * Does nothing. We will not implement textures for the software renderer.
+	 * Make a texture for the software renderer, see {@link SWTexture}.
 	 */
 	public Texture makeTexture()
 	{
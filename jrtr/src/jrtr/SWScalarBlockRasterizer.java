@@ -0,0 +1,139 @@
+package jrtr;
+
+import static jrtr.SWTileRasterizer.*;
+
+/**
+ * Rasterizes one pixel at a time. The edge functions and interpolated
+ * values are evaluated incrementally along each row.
+ * <p>
+ * Textured pixels are modulated with the texture color. The mipmap level
+ * is chosen per pixel from the screen space derivatives of the texture 
+ * coordinates.
+ */
+public class SWScalarBlockRasterizer implements SWBlockRasterizer {
+
+	public boolean rasterizeBlock(float[] s, int t, SWTexture texture, int x0, int y0, int x1, int y1, 
+			SWFrameBuffer frameBuffer)
+	{
+		if(texture != null)
+			return rasterizeTexturedBlock(s, t, texture, x0, y0, x1, y1, frameBuffer);
+		
+		int[] color = frameBuffer.getColor();
+		float[] depth = frameBuffer.getDepth();
+		int width = frameBuffer.getWidth();
+
+		float a0 = s[t+E0], b0 = s[t+E0+1], c0 = s[t+E0+2], t0 = s[t+T0];
+		float a1 = s[t+E1], b1 = s[t+E1+1], c1 = s[t+E1+2], t1 = s[t+T1];
+		float a2 = s[t+E2], b2 = s[t+E2+1], c2 = s[t+E2+2], t2 = s[t+T2];
+		float za = s[t+PLANE_Z], zb = s[t+PLANE_Z+1], zc = s[t+PLANE_Z+2];
+		float wa = s[t+PLANE_IW], wb = s[t+PLANE_IW+1], wc = s[t+PLANE_IW+2];
+		float ra = s[t+PLANE_R], rb = s[t+PLANE_R+1], rc = s[t+PLANE_R+2];
+		float ga = s[t+PLANE_G], gb = s[t+PLANE_G+1], gc = s[t+PLANE_G+2];
+		float ba = s[t+PLANE_B], bb = s[t+PLANE_B+1], bc = s[t+PLANE_B+2];
+
+		boolean written = false;
+		for(int y=y0; y<y1; y++)
+		{
+			float px = x0 + .5f, py = y + .5f;
+			float e0 = a0*px + b0*py + c0;
+			float e1 = a1*px + b1*py + c1;
+			float e2 = a2*px + b2*py + c2;
+			float z = za*px + zb*py + zc;
+			float iw = wa*px + wb*py + wc;
+			float r = ra*px + rb*py + rc;
+			float g = ga*px + gb*py + gc;
+			float b = ba*px + bb*py + bc;
+
+			int i = y*width + x0;
+			for(int x=x0; x<x1; x++, i++)
+			{
+				if(e0 >= t0 && e1 >= t1 && e2 >= t2 && z >= 0 && z < depth[i])
+				{
+					depth[i] = z;
+					float w = 1.f/iw;
+					color[i] = packColor(r*w, g*w, b*w);
+					written = true;
+				}
+				e0 += a0; e1 += a1; e2 += a2;
+				z += za; iw += wa;
+				r += ra; g += ga; b += ba;
+			}
+		}
+		return written;
+	}
+
+	private boolean rasterizeTexturedBlock(float[] s, int t, SWTexture texture, int x0, int y0, int x1, int y1, 
+			SWFrameBuffer frameBuffer)
+	{
+		int[] color = frameBuffer.getColor();
+		float[] depth = frameBuffer.getDepth();
+		int width = frameBuffer.getWidth();
+		float tw = texture.getWidth(), th = texture.getHeight();
+
+		float a0 = s[t+E0], b0 = s[t+E0+1], c0 = s[t+E0+2], t0 = s[t+T0];
+		float a1 = s[t+E1], b1 = s[t+E1+1], c1 = s[t+E1+2], t1 = s[t+T1];
+		float a2 = s[t+E2], b2 = s[t+E2+1], c2 = s[t+E2+2], t2 = s[t+T2];
+		float za = s[t+PLANE_Z], zb = s[t+PLANE_Z+1], zc = s[t+PLANE_Z+2];
+		float wa = s[t+PLANE_IW], wb = s[t+PLANE_IW+1], wc = s[t+PLANE_IW+2];
+		float ra = s[t+PLANE_R], rb = s[t+PLANE_R+1], rc = s[t+PLANE_R+2];
+		float ga = s[t+PLANE_G], gb = s[t+PLANE_G+1], gc = s[t+PLANE_G+2];
+		float ba = s[t+PLANE_B], bb = s[t+PLANE_B+1], bc = s[t+PLANE_B+2];
+		float ua = s[t+PLANE_U], ub = s[t+PLANE_U+1], uc = s[t+PLANE_U+2];
+		float va = s[t+PLANE_V], vb = s[t+PLANE_V+1], vc = s[t+PLANE_V+2];
+
+		boolean written = false;
+		for(int y=y0; y<y1; y++)
+		{
+			float px = x0 + .5f, py = y + .5f;
+			float e0 = a0*px + b0*py + c0;
+			float e1 = a1*px + b1*py + c1;
+			float e2 = a2*px + b2*py + c2;
+			float z = za*px + zb*py + zc;
+			float iw = wa*px + wb*py + wc;
+			float r = ra*px + rb*py + rc;
+			float g = ga*px + gb*py + gc;
+			float b = ba*px + bb*py + bc;
+			float uw = ua*px + ub*py + uc;
+			float vw = va*px + vb*py + vc;
+
+			int i = y*width + x0;
+			for(int x=x0; x<x1; x++, i++)
+			{
+				if(e0 >= t0 && e1 >= t1 && e2 >= t2 && z >= 0 && z < depth[i])
+				{
+					depth[i] = z;
+					float w = 1.f/iw;
+					float u = uw*w, v = vw*w;
+
+					// Derivatives of the perspective divided texture coordinates,
+					// e.g., du/dx = (ua - u*wa)/iw, in texels
+					float dudx = (ua - u*wa)*w*tw, dvdx = (va - v*wa)*w*th;
+					float dudy = (ub - u*wb)*w*tw, dvdy = (vb - v*wb)*w*th;
+					float rho2 = Math.max(dudx*dudx + dvdx*dvdx, dudy*dudy + dvdy*dvdy);
+					int c = texture.sample(u, v, .5f*log2(rho2));
+
+					float k = w*(1.f/255.f);
+					color[i] = packColor(r*k*(c >> 16 & 0xff), g*k*(c >> 8 & 0xff), b*k*(c & 0xff));
+					written = true;
+				}
+				e0 += a0; e1 += a1; e2 += a2;
+				z += za; iw += wa;
+				r += ra; g += ga; b += ba;
+				uw += ua; vw += va;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * A fast approximation of the base 2 logarithm, which is exact at
+	 * powers of two and linear in between.
+	 */
+	static float log2(float x)
+	{
+		if(!(x > 0)) return Float.NEGATIVE_INFINITY;
+		int bits = Float.floatToRawIntBits(x);
+		float mantissa = Float.intBitsToFloat((bits & 0x007fffff) | 0x3f800000);
+		return ((bits >> 23) & 0xff) - 127 + (mantissa - 1.f);
+	}
+}
@@ -1,13 +1,179 @@
 package jrtr;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import javax.imageio.ImageIO;
 
 /**
- * Manages textures for the software renderer. Not implemented here.
+ * Manages textures for the software renderer. The image is decoded once
+ * when it is loaded, and a chain of mipmap levels is built by averaging
+ * blocks of 2x2 texels.
+ * <p>
+ * Each level is stored in tiles of 4x4 texels, so that the texels a bilinear
+ * lookup needs are usually in the same 64 byte cache line. Texels are packed
+ * RGB integers, like in the {@link SWFrameBuffer}. Texture coordinates wrap
+ * around (repeat), and (0,0) is the lower left corner of the image, as in
+ * OpenGL.
  */
 public class SWTexture implements Texture {
 
-	public void load(String fileName) throws IOException {
+	private static final int TILE_SHIFT = 2;
+	private static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+
+	private int[][] levels;
+	private int[] widths, heights, tilesX;
+
+	/**
+	 * Load the texture from an image file and build its mipmap levels.
+	 */
+	public void load(String fileName) throws IOException
+	{
+		BufferedImage img = ImageIO.read(new File(fileName));
+		if(img == null)
+			throw new IOException("Could not decode image " + fileName);
+		int w = img.getWidth(), h = img.getHeight();
+
+		// Decode once, flipping rows so that row 0 is the bottom of the image
+		int[] texels = new int[w*h];
+		img.getRGB(0, 0, w, h, texels, 0, w);
+		int[] level = new int[w*h];
+		for(int y=0; y<h; y++)
+			System.arraycopy(texels, (h-1-y)*w, level, y*w, w);
+
+		int n = 1;
+		while((w >> n) > 0 || (h >> n) > 0) n++;
+		levels = new int[n][];
+		widths = new int[n];
+		heights = new int[n];
+		tilesX = new int[n];
+
+		for(int l=0; l<n; l++)
+		{
+			store(l, level, w, h);
+			if(l+1 < n)
+			{
+				int w2 = Math.max(1, w/2), h2 = Math.max(1, h/2);
+				level = downsample(level, w, h, w2, h2);
+				w = w2;
+				h = h2;
+			}
+		}
+	}
+
+	/**
+	 * Average 2x2 blocks of a level to make the next smaller level.
+	 */
+	private static int[] downsample(int[] src, int w, int h, int w2, int h2)
+	{
+		int[] dst = new int[w2*h2];
+		for(int y=0; y<h2; y++)
+		{
+			int y0 = Math.min(2*y, h-1), y1 = Math.min(2*y+1, h-1);
+			for(int x=0; x<w2; x++)
+			{
+				int x0 = Math.min(2*x, w-1), x1 = Math.min(2*x+1, w-1);
+				int c0 = src[y0*w+x0], c1 = src[y0*w+x1], c2 = src[y1*w+x0], c3 = src[y1*w+x1];
+				int r = ((c0 >> 16 & 0xff) + (c1 >> 16 & 0xff) + (c2 >> 16 & 0xff) + (c3 >> 16 & 0xff) + 2) >> 2;
+				int g = ((c0 >> 8 & 0xff) + (c1 >> 8 & 0xff) + (c2 >> 8 & 0xff) + (c3 >> 8 & 0xff) + 2) >> 2;
+				int b = ((c0 & 0xff) + (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + 2) >> 2;
+				dst[y*w2+x] = (r << 16) | (g << 8) | b;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Store a level, given in scanline order, in tiled order.
+	 */
+	private void store(int l, int[] texels, int w, int h)
+	{
+		int tx = (w + TILE_MASK) >> TILE_SHIFT, ty = (h + TILE_MASK) >> TILE_SHIFT;
+		int[] tiled = new int[tx*ty*TILE_SIZE*TILE_SIZE];
+		for(int y=0; y<h; y++)
+			for(int x=0; x<w; x++)
+				tiled[address(x, y, tx)] = texels[y*w+x];
+		levels[l] = tiled;
+		widths[l] = w;
+		heights[l] = h;
+		tilesX[l] = tx;
+	}
+
+	private static int address(int x, int y, int tilesX)
+	{
+		int tile = (y >> TILE_SHIFT)*tilesX + (x >> TILE_SHIFT);
+		return (tile << (2*TILE_SHIFT)) | ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
 	}
 
+	/**
+	 * @return true if an image was loaded
+	 */
+	public boolean isLoaded()
+	{
+		return levels != null;
+	}
+
+	public int getWidth()
+	{
+		return widths[0];
+	}
+
+	public int getHeight()
+	{
+		return heights[0];
+	}
+
+	/**
+	 * Look up the texture with trilinear filtering, i.e., bilinear lookups
+	 * in the two mipmap levels closest to the level of detail, blended
+	 * linearly.
+	 *
+	 * @param u the horizontal texture coordinate
+	 * @param v the vertical texture coordinate
+	 * @param lod the level of detail, i.e., the base 2 logarithm of the
+	 * 		  texture footprint of a pixel in texels of level 0
+	 * @return the packed RGB color
+	 */
+	public int sample(float u, float v, float lod)
+	{
+		int last = levels.length - 1;
+		if(!(lod > 0)) return bilinear(0, u, v);
+		if(lod >= last) return bilinear(last, u, v);
+		int l = (int)lod;
+		float f = lod - l;
+		int c0 = bilinear(l, u, v);
+		int c1 = bilinear(l+1, u, v);
+		return lerp(c0, c1, f);
+	}
+
+	/**
+	 * Bilinear lookup in one level, with wrap around.
+	 */
+	private int bilinear(int l, float u, float v)
+	{
+		int w = widths[l], h = heights[l], tx = tilesX[l];
+		int[] texels = levels[l];
+		float x = u*w - .5f, y = v*h - .5f;
+		float fx = (float)Math.floor(x), fy = (float)Math.floor(y);
+		float sx = x - fx, sy = y - fy;
+		int x0 = Math.floorMod((int)fx, w), y0 = Math.floorMod((int)fy, h);
+		int x1 = x0 + 1 == w ? 0 : x0 + 1, y1 = y0 + 1 == h ? 0 : y0 + 1;
+		int c00 = texels[address(x0, y0, tx)], c10 = texels[address(x1, y0, tx)];
+		int c01 = texels[address(x0, y1, tx)], c11 = texels[address(x1, y1, tx)];
+		return lerp(lerp(c00, c10, sx), lerp(c01, c11, sx), sy);
+	}
+
+	/**
+	 * Linear interpolation of packed RGB colors.
+	 */
+	private static int lerp(int c0, int c1, float s)
+	{
+		int k = (int)(s*256.f);
+		int r0 = c0 >> 16 & 0xff, g0 = c0 >> 8 & 0xff, b0 = c0 & 0xff;
+		int r = r0 + ((((c1 >> 16 & 0xff) - r0)*k) >> 8);
+		int g = g0 + ((((c1 >> 8 & 0xff) - g0)*k) >> 8);
+		int b = b0 + ((((c1 & 0xff) - b0)*k) >> 8);
+		return (r << 16) | (g << 8) | b;
+	}
 }
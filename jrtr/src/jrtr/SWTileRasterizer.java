@@ -0,0 +1,529 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rasterizes triangles for the software renderer {@link SWRenderContext}.
+ * The color buffer is split into square tiles of {@link #TILE_SIZE} pixels.
+ * Triangles are set up and sorted into the tiles they overlap ("binning")
+ * as they are submitted, and at the end of the frame all tiles are
+ * rasterized in parallel on a <code>ForkJoinPool</code>. Since the tiles
+ * are disjoint, no synchronization is needed while writing pixels.
+ * <p>
+ * Triangles are submitted in screen space. Each vertex consists of
+ * {@link #VERTEX_SIZE} floats: the screen space position x and y, the depth
+ * z in [0,1], the reciprocal of the homogeneous coordinate w, the RGB
+ * color and the texture coordinates u and v. Triangles are textured with the
+ * texture set by {@link #setTexture} when they are added.
+ * <p>
+ * Within a tile, triangles are rasterized in blocks of 
+ * {@link SWFrameBuffer#BLOCK_SIZE} pixels. Before any per-pixel work, a 
+ * triangle is compared against the maximum depth of the tile, and each 
+ * block it overlaps against the maximum depth of the block stored in the 
+ * frame buffer. Triangles and blocks that are completely hidden are skipped.
+ * <p>
+ * Optionally, only a subset of the tiles is rasterized, and the other tiles
+ * keep the content of the previous frame, see {@link SWRenderContext}.
+ */
+public class SWTileRasterizer {
+
+	/**
+	 * Width and height of a tile in pixels.
+	 */
+	public static final int TILE_SIZE = 64;
+
+	/**
+	 * Layout of a screen space vertex passed to {@link #addTriangle}.
+	 */
+	public static final int X = 0, Y = 1, Z = 2, IW = 3, R = 4, G = 5, B = 6, U = 7, V = 8;
+	public static final int VERTEX_SIZE = 9;
+
+	/**
+	 * Layout of a triangle after setup. The edge functions are normalized
+	 * such that they evaluate to the barycentric coordinates of a pixel, and
+	 * all interpolated quantities are stored as planes a*x + b*y + c in
+	 * screen space. Colors and texture coordinates are divided by w for 
+	 * perspective correct interpolation. TEXTURE is the index of the texture
+	 * in the list of textures of the frame, or -1.
+	 */
+	static final int MIN_X = 0, MIN_Y = 1, MAX_X = 2, MAX_Y = 3;
+	static final int E0 = 4, E1 = 7, E2 = 10;
+	static final int T0 = 13, T1 = 14, T2 = 15;
+	static final int PLANE_Z = 16, PLANE_IW = 19, PLANE_R = 22, PLANE_G = 25, PLANE_B = 28;
+	static final int MIN_Z = 31, MAX_Z = 32;
+	static final int PLANE_U = 33, PLANE_V = 36, TEXTURE = 39;
+	static final int SETUP_SIZE = 40;
+
+	private ForkJoinPool pool;
+	private SWBlockRasterizer blockRasterizer;
+
+	private int width, height;
+	private int tilesX, tilesY;
+
+	// Set up triangles of the current frame
+	private float[] triangles;
+	private int nTriangles;
+
+	// Textures used in the current frame
+	private ArrayList<SWTexture> textures;
+	private int currentTexture;
+
+	private boolean cullBackFaces;
+
+	// For each tile, the indices of the triangles overlapping it, in
+	// submission order
+	private int[][] bins;
+	private int[] binSizes;
+
+	// Screen space bounds of the triangles added since resetBounds
+	private float boundsMinX, boundsMinY, boundsMaxX, boundsMaxY;
+
+	// Per tile statistics, summed up after rasterization
+	private int[] hizTriangleRejects;
+	private int[] hizBlockRejects;
+	private int[] rasterizedBlocks;
+
+	public SWTileRasterizer(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		blockRasterizer = new SWScalarBlockRasterizer();
+		triangles = new float[1024*SETUP_SIZE];
+		textures = new ArrayList<SWTexture>();
+		setViewportSize(0, 0);
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	public ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Set the inner loop that rasterizes the pixels of a block.
+	 */
+	public void setBlockRasterizer(SWBlockRasterizer blockRasterizer)
+	{
+		this.blockRasterizer = blockRasterizer;
+	}
+
+	public SWBlockRasterizer getBlockRasterizer()
+	{
+		return blockRasterizer;
+	}
+
+	/**
+	 * Enable or disable discarding triangles that are clockwise on the
+	 * screen, i.e., whose back faces are visible. Triangles are two sided
+	 * by default.
+	 */
+	public void setBackfaceCulling(boolean cullBackFaces)
+	{
+		this.cullBackFaces = cullBackFaces;
+	}
+
+	/**
+	 * Set the size of the image that is rasterized. This also sets up the
+	 * tile grid.
+	 */
+	public void setViewportSize(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		bins = new int[tilesX*tilesY][16];
+		binSizes = new int[tilesX*tilesY];
+		hizTriangleRejects = new int[tilesX*tilesY];
+		hizBlockRejects = new int[tilesX*tilesY];
+		rasterizedBlocks = new int[tilesX*tilesY];
+		nTriangles = 0;
+	}
+
+	/**
+	 * Discard all triangles of the previous frame.
+	 */
+	public void beginFrame()
+	{
+		nTriangles = 0;
+		Arrays.fill(binSizes, 0);
+		textures.clear();
+		currentTexture = -1;
+		resetBounds();
+	}
+
+	/**
+	 * Start collecting the bounds of the triangles that are added, see
+	 * {@link #getBounds}.
+	 */
+	public void resetBounds()
+	{
+		boundsMinX = boundsMinY = Float.POSITIVE_INFINITY;
+		boundsMaxX = boundsMaxY = Float.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Get the screen space bounding box of all triangles that were added
+	 * since the last call of {@link #resetBounds}.
+	 * 
+	 * @param bounds receives minimum x, minimum y, maximum x and maximum y. 
+	 * 		  The box is empty (minimum greater than maximum) if no triangles
+	 * 		  were added. 
+	 */
+	public void getBounds(float[] bounds)
+	{
+		bounds[0] = boundsMinX; bounds[1] = boundsMinY;
+		bounds[2] = boundsMaxX; bounds[3] = boundsMaxY;
+	}
+
+	/**
+	 * @return the number of tiles of the viewport
+	 */
+	public int getNumberOfTiles()
+	{
+		return tilesX*tilesY;
+	}
+
+	/**
+	 * Set the tiles overlapped by a screen space bounding box, as returned
+	 * by {@link #getBounds}. Nothing is set if the box is empty.
+	 */
+	public void markTiles(BitSet tiles, float minX, float minY, float maxX, float maxY)
+	{
+		if(minX > maxX || minY > maxY || maxX < 0 || maxY < 0 || minX >= width || minY >= height) 
+			return;
+		int tx0 = Math.max(0, (int)minX / TILE_SIZE);
+		int ty0 = Math.max(0, (int)minY / TILE_SIZE);
+		int tx1 = Math.min(tilesX-1, (int)maxX / TILE_SIZE);
+		int ty1 = Math.min(tilesY-1, (int)maxY / TILE_SIZE);
+		for(int ty=ty0; ty<=ty1; ty++)
+			tiles.set(ty*tilesX + tx0, ty*tilesX + tx1 + 1);
+	}
+
+	/**
+	 * Set the texture for the triangles added from now on.
+	 * 
+	 * @param texture the texture, or null for untextured triangles
+	 */
+	public void setTexture(SWTexture texture)
+	{
+		if(texture == null)
+		{
+			currentTexture = -1;
+		} else if(currentTexture < 0 || textures.get(currentTexture) != texture)
+		{
+			currentTexture = textures.size();
+			textures.add(texture);
+		}
+	}
+
+	/**
+	 * Set up a screen space triangle and add it to the bins of all tiles
+	 * it overlaps. Degenerate triangles and triangles that lie completely
+	 * outside the viewport are discarded, as are back faces if back face 
+	 * culling is enabled.
+	 *
+	 * @param v the three vertices of the triangle, each consisting of
+	 * 			{@link #VERTEX_SIZE} floats
+	 */
+	public void addTriangle(float[] v)
+	{
+		final int v0 = 0, v1 = VERTEX_SIZE, v2 = 2*VERTEX_SIZE;
+		float x0 = v[v0+X], y0 = v[v0+Y];
+		float x1 = v[v1+X], y1 = v[v1+Y];
+		float x2 = v[v2+X], y2 = v[v2+Y];
+
+		float minX = Math.min(x0, Math.min(x1, x2));
+		float minY = Math.min(y0, Math.min(y1, y2));
+		float maxX = Math.max(x0, Math.max(x1, x2));
+		float maxY = Math.max(y0, Math.max(y1, y2));
+		if(maxX < 0 || maxY < 0 || minX >= width || minY >= height) return;
+
+		float area = (x1-x0)*(y2-y0) - (x2-x0)*(y1-y0);
+		if(area == 0 || Float.isNaN(area) || Float.isInfinite(area)) return;
+		// The y axis points down, so front faces have negative area
+		if(cullBackFaces && area > 0) return;
+		float ia = 1.f/area;
+
+		if(nTriangles*SETUP_SIZE == triangles.length)
+		{
+			triangles = Arrays.copyOf(triangles, 2*triangles.length);
+		}
+		int t = nTriangles*SETUP_SIZE;
+		float[] s = triangles;
+
+		s[t+MIN_X] = minX; s[t+MIN_Y] = minY;
+		s[t+MAX_X] = maxX; s[t+MAX_Y] = maxY;
+		boundsMinX = Math.min(boundsMinX, minX); boundsMinY = Math.min(boundsMinY, minY);
+		boundsMaxX = Math.max(boundsMaxX, maxX); boundsMaxY = Math.max(boundsMaxY, maxY);
+		setupEdge(s, t+E0, t+T0, (y1-y2)*ia, (x2-x1)*ia, (x1*y2-x2*y1)*ia);
+		setupEdge(s, t+E1, t+T1, (y2-y0)*ia, (x0-x2)*ia, (x2*y0-x0*y2)*ia);
+		setupEdge(s, t+E2, t+T2, (y0-y1)*ia, (x1-x0)*ia, (x0*y1-x1*y0)*ia);
+		setupPlane(s, t, t+PLANE_Z, v[v0+Z], v[v1+Z], v[v2+Z]);
+		setupPlane(s, t, t+PLANE_IW, v[v0+IW], v[v1+IW], v[v2+IW]);
+		setupPlane(s, t, t+PLANE_R, v[v0+R]*v[v0+IW], v[v1+R]*v[v1+IW], v[v2+R]*v[v2+IW]);
+		setupPlane(s, t, t+PLANE_G, v[v0+G]*v[v0+IW], v[v1+G]*v[v1+IW], v[v2+G]*v[v2+IW]);
+		setupPlane(s, t, t+PLANE_B, v[v0+B]*v[v0+IW], v[v1+B]*v[v1+IW], v[v2+B]*v[v2+IW]);
+		s[t+MIN_Z] = Math.min(v[v0+Z], Math.min(v[v1+Z], v[v2+Z]));
+		s[t+MAX_Z] = Math.max(v[v0+Z], Math.max(v[v1+Z], v[v2+Z]));
+		s[t+TEXTURE] = currentTexture;
+		if(currentTexture >= 0)
+		{
+			setupPlane(s, t, t+PLANE_U, v[v0+U]*v[v0+IW], v[v1+U]*v[v1+IW], v[v2+U]*v[v2+IW]);
+			setupPlane(s, t, t+PLANE_V, v[v0+V]*v[v0+IW], v[v1+V]*v[v1+IW], v[v2+V]*v[v2+IW]);
+		}
+
+		// Bin the triangle into all overlapped tiles
+		int tx0 = Math.max(0, (int)minX / TILE_SIZE);
+		int ty0 = Math.max(0, (int)minY / TILE_SIZE);
+		int tx1 = Math.min(tilesX-1, (int)maxX / TILE_SIZE);
+		int ty1 = Math.min(tilesY-1, (int)maxY / TILE_SIZE);
+		for(int ty=ty0; ty<=ty1; ty++)
+		{
+			for(int tx=tx0; tx<=tx1; tx++)
+			{
+				int tile = ty*tilesX + tx;
+				if(binSizes[tile] == bins[tile].length)
+				{
+					bins[tile] = Arrays.copyOf(bins[tile], 2*bins[tile].length);
+				}
+				bins[tile][binSizes[tile]++] = nTriangles;
+			}
+		}
+		nTriangles++;
+	}
+
+	/**
+	 * Store a normalized edge function and its inclusion threshold. Pixels
+	 * exactly on an edge are only drawn if it is a top or left edge, so that
+	 * pixels on edges shared by two triangles are drawn exactly once.
+	 */
+	private static void setupEdge(float[] s, int e, int t, float a, float b, float c)
+	{
+		s[e] = a; s[e+1] = b; s[e+2] = c;
+		boolean topLeft = a > 0 || (a == 0 && b > 0);
+		s[t] = topLeft ? 0.f : Float.MIN_VALUE;
+	}
+
+	/**
+	 * Store the plane through the values f0, f1, f2 given at the three
+	 * vertices, using the barycentric edge functions that were already set up.
+	 */
+	private static void setupPlane(float[] s, int t, int p, float f0, float f1, float f2)
+	{
+		s[p]   = f0*s[t+E0]   + f1*s[t+E1]   + f2*s[t+E2];
+		s[p+1] = f0*s[t+E0+1] + f1*s[t+E1+1] + f2*s[t+E2+1];
+		s[p+2] = f0*s[t+E0+2] + f1*s[t+E1+2] + f2*s[t+E2+2];
+	}
+
+	/**
+	 * Rasterize all triangles of the current frame into the frame buffer,
+	 * which needs to have the size of the viewport. The tiles are cleared 
+	 * and rasterized in parallel. This method returns when all tiles are 
+	 * complete.
+	 */
+	public void rasterize(SWFrameBuffer frameBuffer, SWFrameStats stats)
+	{
+		rasterize(frameBuffer, stats, null);
+	}
+
+	/**
+	 * Rasterize the triangles of the current frame into the given tiles
+	 * only. All other tiles of the frame buffer are left unchanged.
+	 *
+	 * @param tiles the tiles to clear and rasterize, or null for all tiles
+	 */
+	public void rasterize(SWFrameBuffer frameBuffer, SWFrameStats stats, BitSet tiles)
+	{
+		int nTiles = tilesX*tilesY;
+		if(nTiles == 0) return;
+
+		int[] list = new int[tiles == null ? nTiles : tiles.cardinality()];
+		int n = 0;
+		for(int i=0; i<nTiles; i++)
+		{
+			if(tiles == null || tiles.get(i))
+			{
+				list[n++] = i;
+			} else
+			{
+				hizTriangleRejects[i] = 0;
+				hizBlockRejects[i] = 0;
+				rasterizedBlocks[i] = 0;
+			}
+		}
+		if(n > 0) pool.invoke(new TileTask(list, 0, n, frameBuffer));
+
+		stats.triangles += nTriangles;
+		stats.reusedTiles += nTiles - n;
+		for(int i=0; i<nTiles; i++)
+		{
+			stats.binnedTriangles += binSizes[i];
+			stats.hizTriangleRejects += hizTriangleRejects[i];
+			stats.hizBlockRejects += hizBlockRejects[i];
+			stats.rasterizedBlocks += rasterizedBlocks[i];
+		}
+	}
+
+	/**
+	 * Recursively splits a range of a list of tiles until single tiles 
+	 * remain, which are then rasterized.
+	 */
+	private class TileTask extends RecursiveAction {
+
+		static final long serialVersionUID = 0;
+
+		private int[] tiles;
+		private int first, last;
+		private SWFrameBuffer frameBuffer;
+
+		public TileTask(int[] tiles, int first, int last, SWFrameBuffer frameBuffer)
+		{
+			this.tiles = tiles;
+			this.first = first;
+			this.last = last;
+			this.frameBuffer = frameBuffer;
+		}
+
+		protected void compute()
+		{
+			if(last - first == 1)
+			{
+				rasterizeTile(tiles[first], frameBuffer);
+			} else
+			{
+				int mid = (first + last) >>> 1;
+				invokeAll(new TileTask(tiles, first, mid, frameBuffer),
+						new TileTask(tiles, mid, last, frameBuffer));
+			}
+		}
+	}
+
+	/**
+	 * Clear a tile and draw all triangles binned to it.
+	 */
+	private void rasterizeTile(int tile, SWFrameBuffer frameBuffer)
+	{
+		final int bs = SWFrameBuffer.BLOCK_SIZE;
+		int x0 = (tile % tilesX) * TILE_SIZE;
+		int y0 = (tile / tilesX) * TILE_SIZE;
+		int x1 = Math.min(x0 + TILE_SIZE, width);
+		int y1 = Math.min(y0 + TILE_SIZE, height);
+
+		frameBuffer.clear(x0, y0, x1, y1, 0, 1.f);
+		float[] blockMax = frameBuffer.getBlockMaxDepth();
+		int blocksX = frameBuffer.getBlocksX();
+		float tileMax = tileMaxDepth(frameBuffer, x0, y0, x1, y1);
+
+		int triangleRejects = 0, blockRejects = 0, blocks = 0;
+		float[] s = triangles;
+		int[] bin = bins[tile];
+		for(int i=0; i<binSizes[tile]; i++)
+		{
+			int t = bin[i]*SETUP_SIZE;
+			SWTexture texture = s[t+TEXTURE] >= 0 ? textures.get((int)s[t+TEXTURE]) : null;
+
+			// The whole triangle is behind everything in the tile
+			if(s[t+MIN_Z] >= tileMax)
+			{
+				triangleRejects++;
+				continue;
+			}
+
+			// Clamp the bounding box of the triangle to the tile
+			int xs = Math.max(x0, (int)Math.floor(s[t+MIN_X]));
+			int ys = Math.max(y0, (int)Math.floor(s[t+MIN_Y]));
+			int xe = Math.min(x1, (int)Math.ceil(s[t+MAX_X]));
+			int ye = Math.min(y1, (int)Math.ceil(s[t+MAX_Y]));
+
+			boolean written = false;
+			for(int by=ys/bs; by*bs<ye; by++)
+			{
+				int bys = Math.max(ys, by*bs), bye = Math.min(ye, by*bs + bs);
+				for(int bx=xs/bs; bx*bs<xe; bx++)
+				{
+					int bxs = Math.max(xs, bx*bs), bxe = Math.min(xe, bx*bs + bs);
+
+					// Pixel centers of the block
+					float px0 = bxs + .5f, px1 = bxe - .5f;
+					float py0 = bys + .5f, py1 = bye - .5f;
+					if(outside(s, t+E0, s[t+T0], px0, py0, px1, py1) ||
+					   outside(s, t+E1, s[t+T1], px0, py0, px1, py1) ||
+					   outside(s, t+E2, s[t+T2], px0, py0, px1, py1))
+						continue;
+
+					// Closest depth of the triangle in the block
+					float za = s[t+PLANE_Z], zb = s[t+PLANE_Z+1], zc = s[t+PLANE_Z+2];
+					float zmin = za*(za > 0 ? px0 : px1) + zb*(zb > 0 ? py0 : py1) + zc;
+					zmin = Math.max(zmin, s[t+MIN_Z]);
+					int b = by*blocksX + bx;
+					if(zmin >= blockMax[b])
+					{
+						blockRejects++;
+						continue;
+					}
+
+					blocks++;
+					if(blockRasterizer.rasterizeBlock(s, t, texture, bxs, bys, bxe, bye, frameBuffer))
+					{
+						frameBuffer.updateBlock(b);
+						written = true;
+					}
+				}
+			}
+			if(written)
+				tileMax = tileMaxDepth(frameBuffer, x0, y0, x1, y1);
+		}
+
+		hizTriangleRejects[tile] = triangleRejects;
+		hizBlockRejects[tile] = blockRejects;
+		rasterizedBlocks[tile] = blocks;
+	}
+
+	/**
+	 * @return true if the edge function is below its threshold for all 
+	 * 		   points in the rectangle [x0,x1] x [y0,y1]
+	 */
+	private static boolean outside(float[] s, int e, float threshold, float x0, float y0, float x1, float y1)
+	{
+		float a = s[e], b = s[e+1], c = s[e+2];
+		return a*(a > 0 ? x1 : x0) + b*(b > 0 ? y1 : y0) + c < threshold;
+	}
+
+	/**
+	 * @return the maximum depth of the blocks in the rectangle 
+	 * 		   [x0,x1) x [y0,y1), which needs to be aligned to blocks
+	 */
+	private static float tileMaxDepth(SWFrameBuffer frameBuffer, int x0, int y0, int x1, int y1)
+	{
+		final int bs = SWFrameBuffer.BLOCK_SIZE;
+		float[] blockMax = frameBuffer.getBlockMaxDepth();
+		int blocksX = frameBuffer.getBlocksX();
+		float max = Float.NEGATIVE_INFINITY;
+		for(int by=y0/bs; by*bs<y1; by++)
+			for(int bx=x0/bs; bx*bs<x1; bx++)
+				max = Math.max(max, blockMax[by*blocksX + bx]);
+		return max;
+	}
+
+	/**
+	 * Convert a color with components in [0,1] to a packed RGB integer.
+	 */
+	static int packColor(float r, float g, float b)
+	{
+		int ir = (int)(r*255.f + .5f);
+		int ig = (int)(g*255.f + .5f);
+		int ib = (int)(b*255.f + .5f);
+		ir = ir < 0 ? 0 : (ir > 255 ? 255 : ir);
+		ig = ig < 0 ? 0 : (ig > 255 ? 255 : ig);
+		ib = ib < 0 ? 0 : (ib > 255 ? 255 : ib);
+		return (ir << 16) | (ig << 8) | ib;
+	}
+}
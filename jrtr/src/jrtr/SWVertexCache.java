@@ -0,0 +1,232 @@
+package jrtr;
+
+import java.util.Arrays;
+import javax.vecmath.Matrix4f;
+
+/**
+ * The vertex stage of the software renderer, with a post-transform cache.
+ * Vertices shared by several triangles are referenced by several indices,
+ * but each vertex is transformed only the first time it is referenced in 
+ * a draw call. Later references hit the cache.
+ * <p>
+ * The cache holds one entry per vertex of the {@link VertexData} that is
+ * drawn. Entries are tagged with the number of the current draw call, so
+ * starting a new draw call invalidates all entries without clearing them.
+ * Transformed vertices are stored as a structure of arrays, indexed by 
+ * vertex index.
+ * <p>
+ * Positions, colors and texture coordinates are decoded from the vertex
+ * data once, and kept as long as the same vertex data is drawn. Instances
+ * of an object that are drawn one after the other, see 
+ * {@link RenderQueue#getBatchSize}, therefore only need to transform the
+ * positions.
+ */
+public class SWVertexCache {
+
+	/**
+	 * Clip space positions of the vertices.
+	 */
+	float[] clipX, clipY, clipZ, clipW;
+	
+	/**
+	 * Outcodes of the clip space positions, see {@link SWClipper}.
+	 */
+	int[] outcodes;
+	
+	/**
+	 * Screen space positions and reciprocal w. These are only valid for
+	 * vertices that do not need to be clipped.
+	 */
+	float[] screenX, screenY, screenZ, invW;
+	
+	/**
+	 * Vertex colors.
+	 */
+	float[] red, green, blue;
+	
+	/**
+	 * Texture coordinates.
+	 */
+	float[] texU, texV;
+
+	/**
+	 * Object space positions.
+	 */
+	private float[] objectX, objectY, objectZ, objectW;
+
+	private int[] tags;
+	private int tag;
+	
+	// The vertices whose attributes are decoded are tagged per vertex data
+	private int[] attributeTags;
+	private int attributeTag;
+	private VertexData vertexData;
+	private int version;
+
+	private VertexData.VertexElement position, colors, texcoords;
+	private Matrix4f t;
+	private int width, height;
+	private SWFrameStats stats;
+
+	public SWVertexCache()
+	{
+		resize(0);
+	}
+
+	private void resize(int n)
+	{
+		clipX = new float[n]; clipY = new float[n]; clipZ = new float[n]; clipW = new float[n];
+		screenX = new float[n]; screenY = new float[n]; screenZ = new float[n]; invW = new float[n];
+		red = new float[n]; green = new float[n]; blue = new float[n];
+		texU = new float[n]; texV = new float[n];
+		objectX = new float[n]; objectY = new float[n]; objectZ = new float[n]; objectW = new float[n];
+		outcodes = new int[n];
+		tags = new int[n];
+		Arrays.fill(tags, -1);
+		attributeTags = new int[n];
+		Arrays.fill(attributeTags, -1);
+	}
+
+	/**
+	 * Start a draw call. This invalidates all cache entries, but keeps the
+	 * decoded attributes if the vertex data is the same as in the previous
+	 * draw call and has not been modified.
+	 * 
+	 * @param vertexData the vertices that will be drawn
+	 * @param t the object-to-clip space transformation
+	 * @param width the width of the viewport
+	 * @param height the height of the viewport
+	 * @param stats receives the number of cache hits and misses
+	 */
+	public void begin(VertexData vertexData, Matrix4f t, int width, int height, SWFrameStats stats)
+	{
+		int n = vertexData.getNumberOfVertices();
+		if(n > tags.length) resize(Math.max(n, 2*tags.length));
+		if(++tag == Integer.MAX_VALUE)
+		{
+			Arrays.fill(tags, -1);
+			tag = 0;
+		}
+		if(vertexData != this.vertexData || vertexData.getVersion() != version)
+		{
+			if(++attributeTag == Integer.MAX_VALUE)
+			{
+				Arrays.fill(attributeTags, -1);
+				attributeTag = 0;
+			}
+			this.vertexData = vertexData;
+			version = vertexData.getVersion();
+		}
+
+		position = vertexData.getElement(VertexData.Semantic.POSITION);
+		colors = vertexData.getElement(VertexData.Semantic.COLOR);
+		texcoords = vertexData.getElement(VertexData.Semantic.TEXCOORD);
+		this.t = t;
+		this.width = width;
+		this.height = height;
+		this.stats = stats;
+	}
+
+	/**
+	 * @return true if the vertex data of the current draw call has positions
+	 */
+	public boolean hasPositions()
+	{
+		return position != null;
+	}
+
+	/**
+	 * Make sure vertex i is transformed. 
+	 */
+	public void fetch(int i)
+	{
+		if(tags[i] == tag)
+		{
+			stats.vertexCacheHits++;
+			return;
+		}
+		stats.vertexCacheMisses++;
+		tags[i] = tag;
+		transform(i);
+	}
+
+	/**
+	 * Transform vertex i to clip space and compute its outcode. If it does
+	 * not need to be clipped, also transform it to screen space.
+	 */
+	private void transform(int i)
+	{
+		if(attributeTags[i] != attributeTag)
+		{
+			attributeTags[i] = attributeTag;
+			decode(i);
+		}
+		float x = objectX[i], y = objectY[i], z = objectZ[i], w = objectW[i];
+
+		float cx = t.m00*x + t.m01*y + t.m02*z + t.m03*w;
+		float cy = t.m10*x + t.m11*y + t.m12*z + t.m13*w;
+		float cz = t.m20*x + t.m21*y + t.m22*z + t.m23*w;
+		float cw = t.m30*x + t.m31*y + t.m32*z + t.m33*w;
+		clipX[i] = cx; clipY[i] = cy; clipZ[i] = cz; clipW[i] = cw;
+		outcodes[i] = SWClipper.outcode(cx, cy, cz, cw);
+
+		if((outcodes[i] & SWClipper.CLIP_MASK) == 0)
+		{
+			// Perspective division and viewport transform
+			float iw = 1.f/cw;
+			screenX[i] = (cx*iw + 1.f)*.5f*width;
+			screenY[i] = (1.f - cy*iw)*.5f*height;
+			screenZ[i] = (cz*iw + 1.f)*.5f;
+			invW[i] = iw;
+		}
+	}
+	
+	/**
+	 * Read the position, color and texture coordinates of vertex i from the
+	 * vertex data.
+	 */
+	private void decode(int i)
+	{
+		VertexData.VertexElement p = position;
+		int k = p.getNumberOfComponents();
+		objectX[i] = p.get(i, 0);
+		objectY[i] = p.get(i, 1);
+		objectZ[i] = k > 2 ? p.get(i, 2) : 0.f;
+		objectW[i] = k > 3 ? p.get(i, 3) : 1.f;
+
+		if(colors != null)
+		{
+			VertexData.VertexElement c = colors;
+			red[i] = c.get(i, 0); green[i] = c.get(i, 1); blue[i] = c.get(i, 2);
+		} else
+		{
+			red[i] = 1.f; green[i] = 1.f; blue[i] = 1.f;
+		}
+
+		if(texcoords != null)
+		{
+			VertexData.VertexElement c = texcoords;
+			texU[i] = c.get(i, 0); texV[i] = c.getNumberOfComponents() > 1 ? c.get(i, 1) : 0.f;
+		} else
+		{
+			texU[i] = 0.f; texV[i] = 0.f;
+		}
+	}
+
+	/**
+	 * Copy the screen space vertex i to v at offset o, in the layout 
+	 * expected by {@link SWTileRasterizer#addTriangle}.
+	 */
+	public void store(int i, float[] v, int o)
+	{
+		v[o+SWTileRasterizer.X] = screenX[i];
+		v[o+SWTileRasterizer.Y] = screenY[i];
+		v[o+SWTileRasterizer.Z] = screenZ[i];
+		v[o+SWTileRasterizer.IW] = invW[i];
+		v[o+SWTileRasterizer.R] = red[i];
+		v[o+SWTileRasterizer.G] = green[i];
+		v[o+SWTileRasterizer.B] = blue[i];
+		v[o+SWTileRasterizer.U] = texU[i];
+		v[o+SWTileRasterizer.V] = texV[i];
+	}
+}
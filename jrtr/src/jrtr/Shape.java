@@ -36,20 +36,42 @@ public class Shape {
 	}
 	
 	/**
-	 * To be implemented in the "Textures and Shading" project.
+	 * Set the material of the shape. This will be extended in the 
+	 * "Textures and Shading" project.
 	 */
 	public void setMaterial(Material material)
 	{
+		this.material = material;
 	}
 
 	/**
-	 * To be implemented in the "Textures and Shading" project.
+	 * @return the material of the shape, or null if it has none
 	 */
 	public Material getMaterial()
 	{
-		return null;
+		return material;
+	}
+
+	/**
+	 * Set the levels of detail of the shape. Level 0 should be the vertex
+	 * data of the shape. Scene managers select a level for each frame, see
+	 * {@link SimpleSceneManager}.
+	 */
+	public void setLodChain(LodChain lodChain)
+	{
+		this.lodChain = lodChain;
+	}
+
+	/**
+	 * @return the levels of detail, or null if the shape has none
+	 */
+	public LodChain getLodChain()
+	{
+		return lodChain;
 	}
 
 	private VertexData vertexData;
 	private Matrix4f t;
+	private Material material;
+	private LodChain lodChain;
 }
@@ -3,6 +3,7 @@ package jrtr;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Iterator;
+import javax.vecmath.Matrix4f;
 
 /**
  * A simple scene manager that stores objects in a linked list.
@@ -12,12 +13,14 @@ public class SimpleSceneManager implements SceneManagerInterface {
 	private LinkedList<Shape> shapes;
 	private Camera camera;
 	private Frustum frustum;
+	private float maxScreenError;
 	
 	public SimpleSceneManager()
 	{
 		shapes = new LinkedList<Shape>();
 		camera = new Camera();
 		frustum = new Frustum();
+		maxScreenError = .002f;
 	}
 	
 	public Camera getCamera()
@@ -30,6 +33,23 @@ public class SimpleSceneManager implements SceneManagerInterface {
 		return frustum;
 	}
 	
+	/**
+	 * Set the largest error allowed for the levels of detail of shapes, see 
+	 * {@link LodChain#select}. The default is 0.002, about one pixel for a
+	 * viewport that is 500 pixels high.
+	 * 
+	 * @param maxScreenError the error as a fraction of the viewport height
+	 */
+	public void setMaxScreenError(float maxScreenError)
+	{
+		this.maxScreenError = maxScreenError;
+	}
+	
+	public float getMaxScreenError()
+	{
+		return maxScreenError;
+	}
+	
 	public void addShape(Shape shape)
 	{
 		shapes.add(shape);
@@ -67,7 +87,14 @@ public class SimpleSceneManager implements SceneManagerInterface {
 			// transformation matrix of the shape. More sophisticated 
 			// scene managers will set the transformation for the 
 			// RenderItem differently.
-			return new RenderItem(shape, shape.getTransformation());
+			LodChain lodChain = shape.getLodChain();
+			if(lodChain == null)
+				return new RenderItem(shape, shape.getTransformation());
+			
+			Matrix4f t = new Matrix4f(camera.getCameraMatrix());
+			t.mul(shape.getTransformation());
+			int level = lodChain.select(t, frustum, maxScreenError);
+			return new RenderItem(shape, shape.getTransformation(), lodChain.getLevel(level));
 		}
 		
 		ListIterator<Shape> itr;
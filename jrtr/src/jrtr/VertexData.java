@@ -1,11 +1,37 @@
 package jrtr;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Provides functionality to specify 3D geometry in the form
  * of triangle meshes. {@link VertexData} consists of a list of 
- * {@link VertexElement}s.
+ * {@link VertexElement}s, at most one per {@link Semantic}. Elements are
+ * looked up by semantic in constant time, and renderers iterate over them
+ * using a precomputed {@link Layout}.
+ * <p>
+ * Vertex elements are either stored in separate <code>float[]</code> arrays,
+ * or interleaved in a direct <code>ByteBuffer</code> in native byte order,
+ * where each element is described by the stride between vertices and the
+ * offset of its first component. Interleaved data lives outside of the Java
+ * heap and is passed to OpenGL and read by the software renderer without
+ * copying. See {@link #addElement(ByteBuffer, int, int, Semantic, int)} and 
+ * {@link #interleave}.
+ * <p>
+ * Elements in buffers can be stored in compact {@link VertexFormat}s, such
+ * as half floats, normalized bytes or octahedral normals. They are decoded
+ * when vertices are fetched. 
+ * <p>
+ * Renderers may keep copies of the data, for example in OpenGL buffer 
+ * objects. Changes through the methods of this class are tracked by
+ * {@link #getVersion}. Data that is modified in place, through the arrays
+ * and buffers returned by {@link VertexElement#getData}, 
+ * {@link VertexElement#getBuffer} or {@link #getIndexBuffer}, needs to be
+ * marked with {@link #markDirty}.
  */
 public class VertexData {
 
@@ -23,14 +49,99 @@ public class VertexData {
 	 * the data values, its semantic, and the number of components per item
 	 * (for example, a homogeneous vector has four components, or RGB colors
 	 * have three components). 
+	 * <p>
+	 * The floats are either stored in an array ({@link #getData}) or in a
+	 * buffer ({@link #getBuffer}) in the format given by {@link #getFormat}.
+	 * {@link #get} reads from either.
 	 */
 	public class VertexElement {
 		
+		/**
+		 * @return the data values, or null if the element is stored in a 
+		 * 		   buffer
+		 */
 		public float[] getData()
 		{
 			return data; 
 		}
 		
+		/**
+		 * @return a view of the buffer that stores the element, starting at 
+		 * 		   the first component of the first vertex, or null if the 
+		 * 		   element is stored in an array
+		 */
+		public ByteBuffer getBuffer()
+		{
+			return buffer;
+		}
+		
+		/**
+		 * @return the format of the element. Elements stored in arrays are 
+		 * 		   always {@link VertexFormat#FLOAT}.
+		 */
+		public VertexFormat getFormat()
+		{
+			return format;
+		}
+		
+		/**
+		 * @return the distance between two vertices in bytes
+		 */
+		public int getStride()
+		{
+			return stride;
+		}
+		
+		/**
+		 * @return the offset of the first component in bytes, relative to 
+		 * 		   the start of the buffer the element was added with
+		 */
+		public int getOffset()
+		{
+			return offset;
+		}
+		
+		/**
+		 * @return component c of vertex i
+		 */
+		public float get(int i, int c)
+		{
+			if(data != null) return data[i*nComponents + c];
+			if(format == VertexFormat.FLOAT) return buffer.getFloat(i*stride + 4*c);
+			return format.get(buffer, i*stride, c);
+		}
+		
+		/**
+		 * Set component c of vertex i. For {@link VertexFormat#OCTAHEDRAL},
+		 * the vector is normalized after each component, so whole vectors 
+		 * need to be set with {@link #set(int, float[])}.
+		 */
+		public void set(int i, int c, float v)
+		{
+			if(data != null) data[i*nComponents + c] = v;
+			else format.put(buffer, i*stride, c, v);
+			version++;
+		}
+		
+		/**
+		 * Set all components of vertex i.
+		 */
+		public void set(int i, float[] v)
+		{
+			if(data != null)
+			{
+				System.arraycopy(v, 0, data, i*nComponents, nComponents);
+			} else if(format == VertexFormat.OCTAHEDRAL)
+			{
+				VertexFormat.octahedralEncode(buffer, i*stride, v[0], v[1], v[2]);
+			} else
+			{
+				for(int c=0; c<nComponents; c++)
+					format.put(buffer, i*stride, c, v[c]);
+			}
+			version++;
+		}
+		
 		public Semantic getSemantic()
 		{
 			return semantic;
@@ -42,10 +153,87 @@ public class VertexData {
 		}
 		
 		private float[] data;
+		private ByteBuffer buffer;
+		private int stride, offset;
+		private VertexFormat format = VertexFormat.FLOAT;
 		private Semantic semantic;
 		private int nComponents;
 	}
 
+	/**
+	 * The vertex elements of a {@link VertexData} in the order in which they 
+	 * are passed to the renderer, with POSITION last. Each element has a 
+	 * format code that combines its semantic and number of components, so 
+	 * that a renderer can process a vertex with one <code>switch</code> per 
+	 * element, without walking a list or allocating. The layout is computed
+	 * once and cached until elements are added, see {@link VertexData#getLayout}.
+	 */
+	public static class Layout {
+		
+		/**
+		 * Format codes of the elements.
+		 */
+		public static final int OTHER = -1;
+		public static final int POSITION2 = 0, POSITION3 = 1, POSITION4 = 2;
+		public static final int NORMAL3 = 3;
+		public static final int TEXCOORD2 = 4, TEXCOORD3 = 5, TEXCOORD4 = 6;
+		public static final int COLOR3 = 7, COLOR4 = 8;
+		
+		private final VertexElement[] elements;
+		private final int[] formats;
+		private final List<VertexElement> list;
+		
+		private Layout(VertexElement[] bySemantic)
+		{
+			ArrayList<VertexElement> l = new ArrayList<VertexElement>();
+			for(VertexElement e : bySemantic)
+				if(e != null && e.semantic != Semantic.POSITION) l.add(e);
+			if(bySemantic[Semantic.POSITION.ordinal()] != null) 
+				l.add(bySemantic[Semantic.POSITION.ordinal()]);
+			
+			elements = l.toArray(new VertexElement[l.size()]);
+			formats = new int[elements.length];
+			for(int k=0; k<elements.length; k++)
+				formats[k] = format(elements[k].semantic, elements[k].nComponents);
+			list = Collections.unmodifiableList(l);
+		}
+		
+		private static int format(Semantic s, int n)
+		{
+			switch(s)
+			{
+				case POSITION:
+					return n >= 2 && n <= 4 ? POSITION2 + n-2 : OTHER;
+				case NORMAL:
+					return n >= 3 ? NORMAL3 : OTHER;
+				case TEXCOORD:
+					return n >= 2 && n <= 4 ? TEXCOORD2 + n-2 : OTHER;
+				case COLOR:
+					return n == 3 ? COLOR3 : n == 4 ? COLOR4 : OTHER;
+				default:
+					return OTHER;
+			}
+		}
+		
+		public int size()
+		{
+			return elements.length;
+		}
+		
+		public VertexElement getElement(int k)
+		{
+			return elements[k];
+		}
+		
+		/**
+		 * @return the format code of element k, for example {@link #POSITION3}
+		 */
+		public int getFormat(int k)
+		{
+			return formats[k];
+		}
+	}
+
 	/**
 	 * Vertex data consists of a list of vertex elements, and an index array.
 	 * The index array contains indices into the vertex data. The indices specify 
@@ -58,7 +246,7 @@ public class VertexData {
 	public VertexData(int n)
 	{
 		this.n = n;
-		vertexElements = new LinkedList<VertexElement>();
+		vertexElements = new VertexElement[Semantic.values().length];
 	}
 	
 	public int getNumberOfVertices()
@@ -66,44 +254,251 @@ public class VertexData {
 		return n;
 	}
 	
+	/**
+	 * Add an element that is stored in an array. An element with the same 
+	 * semantic that was added before is replaced. The element is not added
+	 * if the length of the array does not match the number of vertices.
+	 */
 	public void addElement(float f[], Semantic s, int i)
 	{
 		if(f.length==n*i) 
 		{
 			VertexElement vertexElement = new VertexElement();
 			vertexElement.data = f;
+			vertexElement.stride = 4*i;
 			vertexElement.semantic = s;
 			vertexElement.nComponents = i;
-			
-			// Make sure POSITION is the last element in the list. This guarantees
-			// that rendering works as expected (i.e., vertex attributes are set
-			// before the vertex is rendered).
-			if(s == Semantic.POSITION)
-			{
-				vertexElements.addLast(vertexElement);
-			} else
+			add(vertexElement);
+		}	
+	}
+	
+	/**
+	 * Add an element that is stored in a buffer. Several elements can share
+	 * the same buffer, interleaved or one after the other. The buffer is not 
+	 * copied. An element with the same semantic that was added before is
+	 * replaced. The element is not added if the buffer is not direct, not in
+	 * native byte order, or too small to hold all vertices.
+	 * 
+	 * @param buffer a direct buffer in native byte order, for example 
+	 * 		  made by {@link #allocateBuffer}
+	 * @param stride the distance between two vertices in bytes
+	 * @param offset the position of the first component of the first vertex
+	 * 		  in bytes
+	 * @param s the semantic of the element
+	 * @param i the number of float components per vertex
+	 */
+	public void addElement(ByteBuffer buffer, int stride, int offset, Semantic s, int i)
+	{
+		addElement(buffer, stride, offset, s, i, VertexFormat.FLOAT);
+	}
+	
+	/**
+	 * Add an element that is stored in a buffer in the given format. The
+	 * element is also not added if the format does not support the number of
+	 * components.
+	 * 
+	 * @param i the number of components per vertex after decoding
+	 * @see #addElement(ByteBuffer, int, int, Semantic, int)
+	 */
+	public void addElement(ByteBuffer buffer, int stride, int offset, Semantic s, int i, VertexFormat format)
+	{
+		if(buffer.isDirect() && buffer.order() == ByteOrder.nativeOrder() && format.supports(i) &&
+				(n == 0 || offset + (n-1)*stride + format.getSize(i) <= buffer.capacity()))
+		{
+			VertexElement vertexElement = new VertexElement();
+			ByteBuffer view = buffer.duplicate();
+			view.clear().position(offset);
+			vertexElement.buffer = view.slice().order(ByteOrder.nativeOrder());
+			vertexElement.stride = stride;
+			vertexElement.offset = offset;
+			vertexElement.format = format;
+			vertexElement.semantic = s;
+			vertexElement.nComponents = i;
+			add(vertexElement);
+		}
+	}
+	
+	private void add(VertexElement vertexElement)
+	{
+		vertexElements[vertexElement.semantic.ordinal()] = vertexElement;
+		layout = null;
+		version++;
+	}
+	
+	/**
+	 * Allocate a direct buffer in native byte order that can be used with
+	 * {@link #addElement(ByteBuffer, int, int, Semantic, int)}.
+	 */
+	public static ByteBuffer allocateBuffer(int bytes)
+	{
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * Move all elements into one interleaved buffer, with the components of 
+	 * each vertex stored next to each other. Afterwards, no vertex data is
+	 * stored on the Java heap anymore.
+	 */
+	public void interleave()
+	{
+		interleave(Collections.<Semantic, VertexFormat>emptyMap());
+	}
+	
+	/**
+	 * Move all elements into one interleaved buffer, converting them to the
+	 * given formats. Each element starts at a multiple of four bytes.
+	 * 
+	 * @param formats the format for each semantic. Elements whose semantic 
+	 * 		  is not in the map, or whose format does not support their 
+	 * 		  number of components, are stored as floats.
+	 */
+	public void interleave(Map<Semantic, VertexFormat> formats)
+	{
+		List<VertexElement> elements = getElements();
+		VertexFormat[] f = new VertexFormat[elements.size()];
+		int[] offsets = new int[elements.size()];
+		int stride = 0;
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexElement e = elements.get(k);
+			f[k] = formats.get(e.semantic);
+			if(f[k] == null || !f[k].supports(e.nComponents)) f[k] = VertexFormat.FLOAT;
+			offsets[k] = stride;
+			stride += (f[k].getSize(e.nComponents) + 3) & ~3;
+		}
+		ByteBuffer buffer = allocateBuffer(n*stride);
+		
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexElement e = elements.get(k);
+			for(int i=0; i<n; i++)
 			{
-				vertexElements.addFirst(vertexElement);
+				int o = i*stride + offsets[k];
+				if(f[k] == VertexFormat.OCTAHEDRAL)
+				{
+					VertexFormat.octahedralEncode(buffer, o, e.get(i, 0), e.get(i, 1), e.get(i, 2));
+				} else
+				{
+					for(int c=0; c<e.nComponents; c++)
+						f[k].put(buffer, o, c, e.get(i, c));
+				}
 			}
-		}	
+			addElement(buffer, stride, offsets[k], e.semantic, e.nComponents, f[k]);
+		}
+	}
+	
+	/**
+	 * @return true if all elements are stored in buffers
+	 */
+	public boolean isInBuffers()
+	{
+		for(VertexElement e : vertexElements)
+			if(e != null && e.buffer == null) return false;
+		return true;
 	}
 	
+	/**
+	 * Set the indices. They are stored in an {@link IndexBuffer} with the
+	 * smallest index type that fits, and the array is not kept.
+	 */
 	public void addIndices(int indices[])
+	{
+		addIndices(new IndexBuffer(indices));
+	}
+	
+	/**
+	 * Set the indices. This discards the meshlets, see {@link Meshlets}.
+	 */
+	public void addIndices(IndexBuffer indices)
 	{
 		this.indices = indices;
+		meshlets = null;
+		version++;
+	}
+	
+	/**
+	 * @return the elements in the order of the {@link Layout}, as a list
+	 * 		   that cannot be modified
+	 */
+	public List<VertexElement> getElements()
+	{
+		return getLayout().list;
 	}
 	
-	public LinkedList<VertexElement> getElements()
+	/**
+	 * @return the element with the given semantic, or null if there is none
+	 */
+	public VertexElement getElement(Semantic s)
 	{
-		return vertexElements;
+		return vertexElements[s.ordinal()];
 	}
 	
+	/**
+	 * @return the layout of the elements, which is cached until elements are
+	 * 		   added
+	 */
+	public Layout getLayout()
+	{
+		Layout l = layout;
+		if(l == null)
+		{
+			l = new Layout(vertexElements);
+			layout = l;
+		}
+		return l;
+	}
+	
+	/**
+	 * @return a copy of the indices, or null if there are none. Renderers
+	 * 		   should use {@link #getIndexBuffer} instead.
+	 */
 	public int[] getIndices()
+	{
+		return indices != null ? indices.toArray() : null;
+	}
+	
+	/**
+	 * @return the indices, or null if there are none
+	 */
+	public IndexBuffer getIndexBuffer()
 	{
 		return indices;
 	}
 	
+	/**
+	 * @return the meshlets built by {@link Meshlets#build}, or null
+	 */
+	public Meshlets getMeshlets()
+	{
+		return meshlets;
+	}
+	
+	void setMeshlets(Meshlets meshlets)
+	{
+		this.meshlets = meshlets;
+	}
+	
+	/**
+	 * Mark the data as modified, so that renderers update their copies. 
+	 * This is needed after changing vertex or index data in place.
+	 */
+	public void markDirty()
+	{
+		version++;
+	}
+	
+	/**
+	 * @return a number that changes whenever the data is modified
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+	
 	private int n;
-	private int[] indices;
-	private LinkedList<VertexElement> vertexElements;
+	private IndexBuffer indices;
+	private Meshlets meshlets;
+	private VertexElement[] vertexElements;
+	private Layout layout;
+	private int version;
 }
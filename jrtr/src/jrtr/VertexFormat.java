@@ -0,0 +1,220 @@
+package jrtr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage formats of vertex elements that are stored in buffers, see
+ * {@link VertexData#addElement(ByteBuffer, int, int, VertexData.Semantic, int, VertexFormat)}.
+ * Renderers always see float components; the formats are decoded when
+ * vertices are fetched. Quantized formats make vertex data smaller, for
+ * example 4 instead of 12 bytes for normals, or 3 instead of 12 bytes for
+ * RGB colors.
+ */
+public enum VertexFormat
+{
+	/**
+	 * 32 bit floats.
+	 */
+	FLOAT,
+
+	/**
+	 * 16 bit floats (IEEE 754 half precision), with about three decimal
+	 * digits of precision. Suitable for positions of small objects.
+	 */
+	HALF_FLOAT,
+
+	/**
+	 * Unsigned bytes that represent values in [0,1]. Suitable for colors.
+	 */
+	UNORM8,
+
+	/**
+	 * Unsigned 16 bit integers that represent values in [0,1]. Suitable for
+	 * texture coordinates that do not repeat.
+	 */
+	UNORM16,
+
+	/**
+	 * A unit vector with three components, stored as two signed 16 bit
+	 * integers using the octahedral mapping: the vector is projected onto
+	 * the octahedron |x|+|y|+|z| = 1, and the lower half of the octahedron
+	 * is folded over the upper half. Suitable for normals.
+	 */
+	OCTAHEDRAL;
+
+	/**
+	 * @return the number of bytes that one vertex with the given number of
+	 * 		   components needs
+	 */
+	public int getSize(int components)
+	{
+		switch(this)
+		{
+			case HALF_FLOAT:
+			case UNORM16:
+				return 2*components;
+			case UNORM8:
+				return components;
+			case OCTAHEDRAL:
+				return 4;
+			default:
+				return 4*components;
+		}
+	}
+
+	/**
+	 * @return true if vectors with the given number of components can be
+	 * 		   stored in this format
+	 */
+	public boolean supports(int components)
+	{
+		return this != OCTAHEDRAL || components == 3;
+	}
+
+	/**
+	 * Decode component c of the vertex that starts at byte o.
+	 */
+	float get(ByteBuffer b, int o, int c)
+	{
+		switch(this)
+		{
+			case HALF_FLOAT:
+				return halfToFloat(b.getShort(o + 2*c));
+			case UNORM8:
+				return (b.get(o + c) & 0xff) * (1.f/255.f);
+			case UNORM16:
+				return (b.getShort(o + 2*c) & 0xffff) * (1.f/65535.f);
+			case OCTAHEDRAL:
+				return octahedralDecode(b.getShort(o), b.getShort(o + 2), c);
+			default:
+				return b.getFloat(o + 4*c);
+		}
+	}
+
+	/**
+	 * Encode component c of the vertex that starts at byte o. Values are
+	 * clamped to the range of the format.
+	 */
+	void put(ByteBuffer b, int o, int c, float v)
+	{
+		switch(this)
+		{
+			case HALF_FLOAT:
+				b.putShort(o + 2*c, floatToHalf(v));
+				break;
+			case UNORM8:
+				b.put(o + c, (byte)Math.round(Math.max(0, Math.min(1, v)) * 255.f));
+				break;
+			case UNORM16:
+				b.putShort(o + 2*c, (short)Math.round(Math.max(0, Math.min(1, v)) * 65535.f));
+				break;
+			case OCTAHEDRAL:
+				float x = octahedralDecode(b.getShort(o), b.getShort(o + 2), 0);
+				float y = octahedralDecode(b.getShort(o), b.getShort(o + 2), 1);
+				float z = octahedralDecode(b.getShort(o), b.getShort(o + 2), 2);
+				if(c == 0) x = v; else if(c == 1) y = v; else z = v;
+				octahedralEncode(b, o, x, y, z);
+				break;
+			default:
+				b.putFloat(o + 4*c, v);
+				break;
+		}
+	}
+
+	/**
+	 * Encode all three components of a vector, for {@link #OCTAHEDRAL}.
+	 */
+	static void octahedralEncode(ByteBuffer b, int o, float x, float y, float z)
+	{
+		float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		float px = 0, py = 0;
+		if(l1 > 0)
+		{
+			px = x / l1;
+			py = y / l1;
+			if(z < 0)
+			{
+				float fx = (1 - Math.abs(py)) * (px >= 0 ? 1 : -1);
+				float fy = (1 - Math.abs(px)) * (py >= 0 ? 1 : -1);
+				px = fx;
+				py = fy;
+			}
+		}
+		b.putShort(o, (short)Math.round(px * 32767.f));
+		b.putShort(o + 2, (short)Math.round(py * 32767.f));
+	}
+
+	/**
+	 * @return component c of the normalized vector decoded from the
+	 * 		   octahedral coordinates
+	 */
+	static float octahedralDecode(short sx, short sy, int c)
+	{
+		float x = Math.max(sx * (1.f/32767.f), -1.f);
+		float y = Math.max(sy * (1.f/32767.f), -1.f);
+		float z = 1.f - Math.abs(x) - Math.abs(y);
+		float t = Math.max(-z, 0.f);
+		x += x >= 0 ? -t : t;
+		y += y >= 0 ? -t : t;
+		float l = (float)Math.sqrt(x*x + y*y + z*z);
+		return (c == 0 ? x : c == 1 ? y : z) / l;
+	}
+
+	/**
+	 * Convert a half precision float, given by its bits, to a float.
+	 */
+	static float halfToFloat(short h)
+	{
+		int s = (h & 0x8000) << 16;
+		int e = (h >>> 10) & 0x1f;
+		int m = h & 0x3ff;
+		if(e == 0)
+		{
+			// Zero or subnormal
+			float f = m * 0x1p-24f;
+			return s != 0 ? -f : f;
+		}
+		if(e == 31)
+		{
+			// Infinity or NaN
+			return Float.intBitsToFloat(s | 0x7f800000 | (m << 13));
+		}
+		return Float.intBitsToFloat(s | ((e + 127 - 15) << 23) | (m << 13));
+	}
+
+	/**
+	 * Convert a float to the bits of the closest half precision float.
+	 * Values that are too large become infinity.
+	 */
+	static short floatToHalf(float f)
+	{
+		int bits = Float.floatToIntBits(f);
+		int s = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int m = bits & 0x7fffff;
+		if(exponent == 0xff)
+		{
+			// Infinity or NaN
+			return (short)(s | 0x7c00 | (m != 0 ? 0x200 : 0));
+		}
+		int e = exponent - 127 + 15;
+		if(e >= 31)
+		{
+			return (short)(s | 0x7c00);
+		}
+		if(e <= 0)
+		{
+			// Subnormal, or too small
+			if(e < -10) return (short)s;
+			m |= 0x800000;
+			int shift = 14 - e;
+			int h = m >> shift;
+			if(((m >> (shift - 1)) & 1) != 0) h++;
+			return (short)(s | h);
+		}
+		// Rounding may carry into the exponent, which gives the right result
+		int h = (e << 10) | (m >> 13);
+		if((m & 0x1000) != 0) h++;
+		return (short)(s | h);
+	}
+}
@@ -0,0 +1,248 @@
+package jrtr;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Merges duplicate vertices of a {@link VertexData}, i.e., vertices whose
+ * elements (position, color, texture coordinates, ...) are all equal, and
+ * rewrites the indices to use the remaining vertices. Mesh generators and
+ * importers often emit the same vertex once for each triangle that uses it.
+ * <p>
+ * With an epsilon, a vertex is merged into a vertex that was kept before if
+ * none of their components differ by more than epsilon. Merging is not
+ * transitive: the kept vertex is the first one in the data, and vertices
+ * are only compared with kept vertices. Kept vertices are hashed by the
+ * grid cell of size two epsilon that their position falls into. A vertex
+ * is searched in its own cell and in the neighboring cells on the side of
+ * the nearer cell boundary along each axis, at most eight cells, so
+ * vertices on both sides of a cell boundary are found. Without an epsilon,
+ * all components are hashed and compared exactly.
+ * <p>
+ * Duplicates are found with a hash table with open addressing that stores
+ * vertex indices in an <code>int[]</code>, so no objects are allocated per
+ * vertex and meshes with tens of millions of vertices can be welded.
+ */
+public class VertexWelder {
+
+	/**
+	 * Weld the vertices of the vertex data. If it has no indices, every
+	 * three consecutive vertices are taken as a triangle.
+	 *
+	 * @param epsilon the largest difference of components of vertices that
+	 * 		  are merged, or 0 to merge only exactly equal vertices
+	 * @return new vertex data with the merged vertices, in the order in
+	 * 		   which they first occur, and the rewritten indices. Elements
+	 * 		   stored in arrays are stored in arrays again. Elements stored
+	 * 		   in buffers are copied into one interleaved buffer, in the
+	 * 		   format they had.
+	 */
+	public static VertexData weld(VertexData vertexData, float epsilon)
+	{
+		int n = vertexData.getNumberOfVertices();
+		List<VertexData.VertexElement> elements = vertexData.getElements();
+
+		// The components that select the grid cell of a vertex
+		VertexData.VertexElement key = vertexData.getElement(VertexData.Semantic.POSITION);
+		if(key == null && !elements.isEmpty()) key = elements.get(0);
+		int nKey = key != null ? Math.min(key.getNumberOfComponents(), 3) : 0;
+		double scale = 0.5/epsilon;
+		long[] cell = new long[3];
+		int[] side = new int[3];
+
+		// Open addressing with linear probing. Slots store the index of a
+		// kept vertex plus one, zero marks an empty slot. The table is at
+		// most half full.
+		int capacity = Integer.highestOneBit(Math.max(2*n - 1, 1)) << 1;
+		int mask = capacity - 1;
+		int[] table = new int[capacity];
+
+		// For each vertex, the index of the vertex it is merged into
+		int[] remap = new int[n];
+		int[] unique = new int[n];
+		int m = 0;
+		for(int i=0; i<n; i++)
+		{
+			int j;
+			if(epsilon > 0)
+			{
+				for(int c=0; c<nKey; c++)
+				{
+					double x = key.get(i, c)*scale;
+					cell[c] = (long)Math.floor(x);
+					side[c] = x - cell[c] < 0.5 ? -1 : 1;
+				}
+				j = findNear(table, mask, elements, i, epsilon, cell, side, nKey);
+			} else
+			{
+				j = findEqual(table, mask, elements, i);
+			}
+
+			if(j < 0)
+			{
+				int slot = (epsilon > 0 ? hash(cell, nKey, 0, 0, 0) : hash(elements, i)) & mask;
+				while(table[slot] != 0)
+					slot = (slot + 1) & mask;
+				table[slot] = i + 1;
+				remap[i] = m;
+				unique[m++] = i;
+			} else
+			{
+				remap[i] = remap[j];
+			}
+		}
+		table = null;
+
+		VertexData welded = new VertexData(m);
+		copyVertices(elements, unique, m, welded);
+
+		IndexBuffer indices = vertexData.getIndexBuffer();
+		int nIndices = indices != null ? indices.size() : n - n % 3;
+		IndexBuffer weldedIndices = new IndexBuffer(IndexBuffer.Type.forVertexCount(m), nIndices);
+		for(int j=0; j<nIndices; j++)
+			weldedIndices.set(j, remap[indices != null ? indices.get(j) : j]);
+		welded.addIndices(weldedIndices);
+		return welded;
+	}
+
+	/**
+	 * Copy the kept vertices into the welded vertex data. Elements in
+	 * buffers are copied byte by byte, so they are not encoded again.
+	 */
+	private static void copyVertices(List<VertexData.VertexElement> elements, int[] unique, int m,
+			VertexData welded)
+	{
+		int stride = 0;
+		int[] offsets = new int[elements.size()];
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			if(e.getBuffer() != null)
+			{
+				offsets[k] = stride;
+				stride += (e.getFormat().getSize(e.getNumberOfComponents()) + 3) & ~3;
+			}
+		}
+		ByteBuffer buffer = stride > 0 ? VertexData.allocateBuffer(m*stride) : null;
+
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			int nc = e.getNumberOfComponents();
+			float[] src = e.getData();
+			if(src != null)
+			{
+				float[] data = new float[m*nc];
+				for(int v=0; v<m; v++)
+					System.arraycopy(src, unique[v]*nc, data, v*nc, nc);
+				welded.addElement(data, e.getSemantic(), nc);
+			} else
+			{
+				ByteBuffer b = e.getBuffer();
+				int size = e.getFormat().getSize(nc);
+				for(int v=0; v<m; v++)
+				{
+					int o = v*stride + offsets[k];
+					int srcOffset = unique[v]*e.getStride();
+					for(int i=0; i<size; i++)
+						buffer.put(o + i, b.get(srcOffset + i));
+				}
+				welded.addElement(buffer, stride, offsets[k], e.getSemantic(), nc, e.getFormat());
+			}
+		}
+	}
+
+	/**
+	 * @return a kept vertex that is exactly equal to vertex i, or -1
+	 */
+	private static int findEqual(int[] table, int mask, List<VertexData.VertexElement> elements, int i)
+	{
+		for(int slot = hash(elements, i) & mask; table[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int j = table[slot] - 1;
+			if(equal(elements, i, j)) return j;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a kept vertex whose components differ by at most epsilon from
+	 * 		   those of vertex i, or -1. The vertex is searched in the grid
+	 * 		   cell of vertex i, and the neighbors in the given directions.
+	 */
+	private static int findNear(int[] table, int mask, List<VertexData.VertexElement> elements, int i,
+			float epsilon, long[] cell, int[] side, int nKey)
+	{
+		for(int x=0; x<(nKey > 0 ? 2 : 1); x++)
+			for(int y=0; y<(nKey > 1 ? 2 : 1); y++)
+				for(int z=0; z<(nKey > 2 ? 2 : 1); z++)
+				{
+					int slot = hash(cell, nKey, x*side[0], y*side[1], z*side[2]) & mask;
+					for(; table[slot] != 0; slot = (slot + 1) & mask)
+					{
+						int j = table[slot] - 1;
+						if(near(elements, i, j, epsilon)) return j;
+					}
+				}
+		return -1;
+	}
+
+	/**
+	 * Hash of the bits of all components, with negative zero mapped to zero.
+	 */
+	private static int hash(List<VertexData.VertexElement> elements, int i)
+	{
+		long h = 0;
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			for(int c=0; c<e.getNumberOfComponents(); c++)
+			{
+				float v = e.get(i, c);
+				h = (h + (v == 0 ? 0 : Float.floatToIntBits(v))) * 0x9E3779B97F4A7C15L;
+			}
+		}
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Hash of the grid cell that is offset by (dx, dy, dz) from the given
+	 * cell.
+	 */
+	private static int hash(long[] cell, int nKey, int dx, int dy, int dz)
+	{
+		long h = 0;
+		for(int c=0; c<nKey; c++)
+			h = (h + cell[c] + (c == 0 ? dx : c == 1 ? dy : dz)) * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static boolean equal(List<VertexData.VertexElement> elements, int i, int j)
+	{
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			for(int c=0; c<e.getNumberOfComponents(); c++)
+			{
+				float a = e.get(i, c), b = e.get(j, c);
+				if(a != b && Float.floatToIntBits(a) != Float.floatToIntBits(b))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean near(List<VertexData.VertexElement> elements, int i, int j, float epsilon)
+	{
+		for(int k=0; k<elements.size(); k++)
+		{
+			VertexData.VertexElement e = elements.get(k);
+			for(int c=0; c<e.getNumberOfComponents(); c++)
+			{
+				if(!(Math.abs(e.get(i, c) - e.get(j, c)) <= epsilon))
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,135 @@
+package jrtr;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks when {@link GLBufferCache} uploads and deletes buffers. The OpenGL
+ * calls of the cache are replaced by a proxy that counts them.
+ */
+public class GLBufferCacheTest {
+
+	private Map<String, Integer> calls;
+	private GLBufferCache cache;
+	private VertexData vertexData;
+
+	@Before
+	public void setUp()
+	{
+		calls = new HashMap<String, Integer>();
+		cache = new GLBufferCache(recordingGL());
+
+		vertexData = new VertexData(3);
+		float[] v = {0,0,0, 1,0,0, 0,1,0};
+		vertexData.addElement(v, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(new int[] {0, 1, 2});
+	}
+
+	/**
+	 * @return OpenGL calls that support vertex arrays and are counted by
+	 * 		   name
+	 */
+	private GLBufferCache.Calls recordingGL()
+	{
+		return (GLBufferCache.Calls)Proxy.newProxyInstance(GLBufferCache.Calls.class.getClassLoader(),
+				new Class<?>[] {GLBufferCache.Calls.class},
+				new InvocationHandler()
+		{
+			private int nextName = 1;
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				String name = method.getName();
+				Integer n = calls.get(name);
+				calls.put(name, n == null ? 1 : n + 1);
+
+				if(name.equals("glGenBuffers") || name.equals("glGenVertexArrays"))
+				{
+					int[] names = (int[])args[1];
+					for(int i=0; i<(Integer)args[0]; i++)
+						names[i] = nextName++;
+				}
+				if(method.getReturnType() == boolean.class) return true;
+				return null;
+			}
+		});
+	}
+
+	private int count(String name)
+	{
+		Integer n = calls.get(name);
+		return n == null ? 0 : n;
+	}
+
+	private void drawFrame()
+	{
+		assertTrue(cache.bind(vertexData));
+		cache.drawElements(0, 3);
+		cache.unbind();
+		cache.endFrame();
+	}
+
+	@Test
+	public void secondBindDoesNotUpload()
+	{
+		drawFrame();
+		// One vertex and one index buffer
+		assertEquals(2, count("glBufferData"));
+		drawFrame();
+		drawFrame();
+		assertEquals(2, count("glBufferData"));
+		assertEquals(1, cache.getNumberOfUploads());
+		assertEquals(1, count("glGenBuffers"));
+	}
+
+	@Test
+	public void markDirtyUploadsOnce()
+	{
+		drawFrame();
+		vertexData.markDirty();
+		drawFrame();
+		drawFrame();
+		assertEquals(2, cache.getNumberOfUploads());
+		assertEquals(4, count("glBufferData"));
+		// The buffers are reused
+		assertEquals(1, count("glGenBuffers"));
+	}
+
+	@Test
+	public void setUploadsOnce()
+	{
+		drawFrame();
+		vertexData.getElement(VertexData.Semantic.POSITION).set(1, 0, 2.f);
+		drawFrame();
+		drawFrame();
+		assertEquals(2, cache.getNumberOfUploads());
+		assertEquals(4, count("glBufferData"));
+	}
+
+	@Test
+	public void unusedBuffersAreDeleted()
+	{
+		drawFrame();
+		for(int f=0; f<GLBufferCache.EVICT_FRAMES-1; f++)
+			cache.endFrame();
+		assertEquals(1, cache.size());
+		assertEquals(0, count("glDeleteBuffers"));
+
+		cache.endFrame();
+		assertEquals(0, cache.size());
+		assertEquals(1, count("glDeleteBuffers"));
+		assertEquals(1, count("glDeleteVertexArrays"));
+
+		// Drawing again uploads into new buffers
+		drawFrame();
+		assertEquals(2, cache.getNumberOfUploads());
+		assertEquals(2, count("glGenBuffers"));
+	}
+}